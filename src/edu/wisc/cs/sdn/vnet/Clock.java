@@ -0,0 +1,57 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * Source of the time and timers used by devices, such as for aging routes,
+ * ARP entries, and MAC table entries, and for sending RIP updates. By
+ * default, devices use the system clock and the shared {@link TimerWheel};
+ * a {@link SimulatedClock} can be set instead, before any device is
+ * created, to run devices in virtual time.
+ */
+public abstract class Clock
+{
+	/** Clock used by all devices in the process */
+	private static volatile Clock current = new SystemClock();
+
+	/**
+	 * @return the clock used by all devices in the process
+	 */
+	public static Clock get()
+	{ return current; }
+
+	/**
+	 * @param clock the clock to be used by all devices in the process; must
+	 *        be set before any device is created
+	 */
+	public static void set(Clock clock)
+	{ current = clock; }
+
+	/**
+	 * @return current time (in milliseconds) of the process's clock
+	 */
+	public static long now()
+	{ return current.currentTimeMillis(); }
+
+	/**
+	 * @return current time (in milliseconds)
+	 */
+	public abstract long currentTimeMillis();
+
+	/**
+	 * Run a task once after a delay. Tasks should return quickly.
+	 * @param task the task to run
+	 * @param delay delay (in milliseconds) before the task runs
+	 */
+	public abstract void schedule(Runnable task, long delay);
+
+	/**
+	 * The system's clock, with timers on the shared timer wheel.
+	 */
+	private static class SystemClock extends Clock
+	{
+		public long currentTimeMillis()
+		{ return System.currentTimeMillis(); }
+
+		public void schedule(Runnable task, long delay)
+		{ TimerWheel.getShared().schedule(task, delay); }
+	}
+}
@@ -1,7 +1,9 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import net.floodlightcontroller.packet.Ethernet;
 
@@ -22,8 +24,11 @@ public abstract class Device
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
 	
-	/** Virtual Network Simulator communication manager for the device */
-	private VNSComm vnsComm;
+	/** Carries the frames the device sends */
+	private Transport transport;
+	
+	/** How the device's background work runs */
+	private ThreadMode threadMode;
 	
 	/**
 	 * Creates a device.
@@ -35,7 +40,8 @@ public abstract class Device
 		this.host = host;
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
-		this.vnsComm = null;
+		this.transport = null;
+		this.threadMode = ThreadMode.PLATFORM;
 	}
 	
 	/**
@@ -69,7 +75,41 @@ public abstract class Device
 	 * @param vnsComm Virtual Network System communication manager for the router
 	 */
 	public void setVNSComm(VNSComm vnsComm)
-	{ this.vnsComm = vnsComm; }
+	{ this.transport = vnsComm; }
+	
+	/**
+	 * @param transport carries the frames the device sends
+	 */
+	public void setTransport(Transport transport)
+	{ this.transport = transport; }
+	
+	/**
+	 * @param threadMode how the device's background work runs; must be set
+	 *        before the device starts any background work
+	 */
+	public void setThreadMode(ThreadMode threadMode)
+	{ this.threadMode = threadMode; }
+	
+	/**
+	 * @return how the device's background work runs
+	 */
+	public ThreadMode getThreadMode()
+	{ return this.threadMode; }
+	
+	/**
+	 * @return executor for the device's short background tasks
+	 */
+	public Executor getExecutor()
+	{ return this.threadMode.executor(); }
+	
+	/**
+	 * Start a long-running loop for the device on its own thread.
+	 * @param name name of the thread
+	 * @param loop the loop
+	 * @return the started thread
+	 */
+	public Thread startThread(String name, Runnable loop)
+	{ return this.threadMode.start(this.host + "-" + name, loop); }
 	
 	/**
 	 * Close the PCAP dump file for the router, if logging is enabled.
@@ -87,7 +127,8 @@ public abstract class Device
 	public Iface addInterface(String ifaceName)
 	{
 		Iface iface = new Iface(ifaceName);
-		this.interfaces.put(ifaceName, iface);
+		Iface old = this.interfaces.put(ifaceName, iface);
+		iface.setIndex((null == old) ? this.interfaces.size() - 1 : old.getIndex());
 		return iface;
 	}
 	
@@ -101,14 +142,54 @@ public abstract class Device
 	{ return this.interfaces.get(ifaceName); }
 	
 	/**
-	 * Send an Ethernet packet out a specific interface.
+	 * Send an Ethernet packet out a specific interface. Packets are queued 
+	 * and written in batches; packets sent while handling a received packet
+	 * are written before the next packets are received, while packets sent
+	 * from other threads are written by {@link #flush()}.
 	 * @param etherPacket an Ethernet packet with all fields, encapsulated
 	 * 		  headers, and payloads completed
 	 * @param iface interface on which to send the packet
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		byte[] frame = etherPacket.serialize();
+		return this.transport.sendFrame(frame, 0, frame.length, iface.getName());
+	}
+	
+	/**
+	 * Send a serialized Ethernet frame out a specific interface. The frame
+	 * is queued like a packet, and must not be modified until it is written.
+	 * @param frame the frame's bytes
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, Iface iface)
+	{ return this.transport.sendFrame(frame, 0, frame.length, iface.getName()); }
+	
+	/**
+	 * Write the packets queued by this device's sends.
+	 * @return true if the packets were written, otherwise false
+	 */
+	public boolean flush()
+	{ return this.transport.flush(); }
+	
+	/**
+	 * Forward a raw Ethernet frame without decoding it into packet objects.
+	 * If the device can forward the frame this way, it rewrites the frame's
+	 * headers in place and the same bytes are sent out the returned
+	 * interface; otherwise the frame is left unchanged and is decoded and 
+	 * passed to {@link #handlePacket(Ethernet, Iface)}.
+	 * @param buf buffer holding the frame
+	 * @param offset position of the first byte of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return interface on which to send the rewritten frame; null if the
+	 *         frame must be handled by {@link #handlePacket(Ethernet, Iface)}
+	 */
+	public Iface forwardFrame(ByteBuffer buf, int offset, int length, 
+			Iface inIface)
+	{ return null; }
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
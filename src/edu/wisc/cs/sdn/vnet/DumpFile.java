@@ -7,6 +7,10 @@ import java.io.IOException;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+/**
+ * A PCAP file of the packets sent and received by a device. Packets may be
+ * dumped from several threads; each record is written whole.
+ */
 public class DumpFile
 {
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
@@ -78,23 +82,28 @@ public class DumpFile
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		this.dump(buf, 0, buf.length);
+	}
+	
+	public synchronized void dump(byte[] buf, int offset, int length)
+	{
+		long now = Clock.now();
+		int sec = (int)(now/1000);
+		int usec = (int)((now % 1000)*1000);
 		try
 		{
 			this.outStream.writeInt(sec);
 			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
+			this.outStream.writeInt(length);
+			this.outStream.writeInt(length);
+			this.outStream.write(buf, offset, length);
 			this.outStream.flush();
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
 	}
 	
-	public void close()
+	public synchronized void close()
 	{
 		try
 		{
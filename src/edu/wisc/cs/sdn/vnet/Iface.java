@@ -9,25 +9,50 @@ import net.floodlightcontroller.packet.MACAddress;
  */
 public class Iface 
 {
+	/** Value of macAddress when the interface has no MAC address */
+	private static final long NO_MAC = -1;
+
 	private String name;
-	private MACAddress macAddress;
+	private int index;
+	private long macAddress;
 	private int ipAddress;
     private int subnetMask;
 	
 	public Iface(String name)
 	{
 		this.name = name;
-		this.macAddress = null;
+		this.index = 0;
+		this.macAddress = NO_MAC;
 		this.ipAddress = 0;
 	}
 	
 	public String getName()
 	{ return this.name; }
+
+	/**
+	 * @param index position of the interface among its device's interfaces
+	 */
+	public void setIndex(int index)
+	{ this.index = index; }
+
+	/**
+	 * @return position of the interface among its device's interfaces; 
+	 *         indexes are small and dense, so they can index arrays
+	 */
+	public int getIndex()
+	{ return this.index; }
 	
 	public void setMacAddress(MACAddress mac)
-	{ this.macAddress = mac; }
+	{ this.macAddress = (null == mac) ? NO_MAC : mac.toLong(); }
 	
 	public MACAddress getMacAddress()
+	{ return (NO_MAC == this.macAddress) ? null : MACAddress.valueOf(this.macAddress); }
+
+	/**
+	 * @return MAC address in the lower 48 bits of a long; -1 if the 
+	 *         interface has no MAC address
+	 */
+	public long getMacLong()
 	{ return this.macAddress; }
 
 	public void setIpAddress(int ip)
@@ -44,13 +69,13 @@ public class Iface
 
 	public String toString()
 	{
-		if ((null == this.macAddress) || (0 == this.ipAddress)
+		if ((NO_MAC == this.macAddress) || (0 == this.ipAddress)
 				|| (0 == this.subnetMask))
 		{ return this.name; }
 		else
 		{
 			return String.format("%s\tHWaddr %s\n\tinet addr:%s Mask:%s",
-					this.name, this.macAddress.toString(), 
+					this.name, MACAddress.valueOf(this.macAddress).toString(), 
 					IPv4.fromIPv4Address(this.ipAddress),
 	                IPv4.fromIPv4Address(this.subnetMask));
 		}
@@ -0,0 +1,277 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous logger with levels and per-subsystem categories. Messages
+ * are queued in a lock-free ring and written to the console by a single
+ * background thread, so logging never blocks on a terminal write. When the
+ * ring is full, messages are dropped and counted instead of waiting.
+ */
+public class Log
+{
+	/** Severity of a message; a category logs messages at or above its level */
+	public enum Level { ERROR, WARN, INFO, DEBUG }
+
+	/** Number of messages the ring holds; a power of two */
+	public static final int RING_SIZE = 1 << 12;
+
+	/** Time (in milliseconds) the writer sleeps when the ring is empty */
+	private static final long IDLE_WAIT = 10;
+
+	/** Loggers indexed by category */
+	private static final Map<String,Log> categories = new ConcurrentHashMap<String,Log>();
+
+	/** Level of categories that have not been configured */
+	private static volatile Level defaultLevel = Level.INFO;
+
+	/** Levels of categories configured before they were first used */
+	private static final Map<String,Level> configured = new ConcurrentHashMap<String,Level>();
+
+	/** Queued messages */
+	private static final AtomicReferenceArray<Record> ring =
+			new AtomicReferenceArray<Record>(RING_SIZE);
+
+	/** Sequence number of the next message to be queued */
+	private static final AtomicLong tail = new AtomicLong();
+
+	/** Sequence number of the next message to be written; only the writer
+	 *  advances it */
+	private static volatile long head;
+
+	/** Number of messages dropped because the ring was full */
+	private static final AtomicLong dropped = new AtomicLong();
+
+	static
+	{
+		Thread writer = new Thread(() ->
+		{
+			while (true)
+			{
+				drain();
+				LockSupport.parkNanos(IDLE_WAIT * 1000000);
+			}
+		}, "Log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+	}
+
+	/** Name of the category */
+	private final String category;
+
+	/** Lowest severity logged */
+	private volatile Level level;
+
+	private Log(String category, Level level)
+	{
+		this.category = category;
+		this.level = level;
+	}
+
+	/**
+	 * Get the logger for a category, creating it if necessary.
+	 * @param category name of the subsystem, e.g., "rip" or "sw"
+	 * @return the logger
+	 */
+	public static Log get(String category)
+	{
+		Log log = categories.get(category);
+		if (null == log)
+		{
+			Level level = configured.get(category);
+			categories.putIfAbsent(category,
+					new Log(category, (null == level) ? defaultLevel : level));
+			log = categories.get(category);
+		}
+		return log;
+	}
+
+	/**
+	 * Configure levels from a specification of the form "level" or
+	 * "category=level,category=level,...".
+	 * @param spec the specification; level names are case insensitive
+	 * @return true if the specification was valid, otherwise false
+	 */
+	public static boolean configure(String spec)
+	{
+		try
+		{
+			for (String part : spec.split(","))
+			{
+				int eq = part.indexOf('=');
+				if (eq < 0)
+				{
+					defaultLevel = Level.valueOf(part.trim().toUpperCase());
+					for (Log log : categories.values())
+					{
+						if (!configured.containsKey(log.category))
+						{ log.level = defaultLevel; }
+					}
+					continue;
+				}
+				String category = part.substring(0, eq).trim();
+				Level level = Level.valueOf(part.substring(eq + 1).trim().toUpperCase());
+				configured.put(category, level);
+				get(category).level = level;
+			}
+			return true;
+		}
+		catch (IllegalArgumentException e)
+		{ return false; }
+	}
+
+	/**
+	 * @return number of messages dropped because the ring was full
+	 */
+	public static long getDropped()
+	{ return dropped.get(); }
+
+	/**
+	 * @param level severity of a message
+	 * @return true if messages of the given severity are logged; callers
+	 *         should check this before building an expensive message
+	 */
+	public boolean isEnabled(Level level)
+	{ return level.ordinal() <= this.level.ordinal(); }
+
+	public boolean isDebugEnabled()
+	{ return this.isEnabled(Level.DEBUG); }
+
+	public void error(String message)
+	{ this.log(Level.ERROR, message); }
+
+	public void warn(String message)
+	{ this.log(Level.WARN, message); }
+
+	public void info(String message)
+	{ this.log(Level.INFO, message); }
+
+	public void debug(String message)
+	{ this.log(Level.DEBUG, message); }
+
+	/**
+	 * Queue a message to be written, if its severity is enabled.
+	 * @param level severity of the message
+	 * @param message the message
+	 */
+	public void log(Level level, String message)
+	{
+		if (!this.isEnabled(level))
+		{ return; }
+
+		long seq;
+		do
+		{
+			seq = tail.get();
+			if (seq - head >= RING_SIZE)
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(seq, seq + 1));
+		ring.set((int)(seq & (RING_SIZE - 1)),
+				new Record(Clock.now(), level, this.category, message));
+	}
+
+	/**
+	 * Write all queued messages. A message whose slot has been claimed but
+	 * not yet filled ends the batch; it is written by the next call.
+	 */
+	private static synchronized void drain()
+	{
+		StringBuilder out = null;
+		StringBuilder err = null;
+		while (true)
+		{
+			int slot = (int)(head & (RING_SIZE - 1));
+			Record record = ring.get(slot);
+			if (null == record)
+			{ break; }
+			ring.set(slot, null);
+			head++;
+
+			if (record.level.ordinal() <= Level.WARN.ordinal())
+			{ err = record.appendTo((null == err) ? new StringBuilder() : err); }
+			else
+			{ out = record.appendTo((null == out) ? new StringBuilder() : out); }
+		}
+		write(System.out, out);
+		write(System.err, err);
+	}
+
+	private static void write(PrintStream stream, StringBuilder text)
+	{
+		if (text != null)
+		{
+			stream.print(text);
+			stream.flush();
+		}
+	}
+
+	/**
+	 * A queued message.
+	 */
+	private static class Record
+	{
+		final long time;
+		final Level level;
+		final String category;
+		final String message;
+
+		Record(long time, Level level, String category, String message)
+		{
+			this.time = time;
+			this.level = level;
+			this.category = category;
+			this.message = message;
+		}
+
+		StringBuilder appendTo(StringBuilder sb)
+		{
+			long millis = this.time % (24 * 60 * 60 * 1000);
+			sb.append(String.format("%02d:%02d:%02d.%03d %-5s [%s] ",
+					millis / 3600000, (millis / 60000) % 60, (millis / 1000) % 60,
+					millis % 1000, this.level, this.category));
+			return sb.append(this.message).append('\n');
+		}
+	}
+
+	/**
+	 * Limits how often an expensive message, such as a table dump, is
+	 * logged. Calls made within the interval of a permitted call are refused.
+	 */
+	public static class RateLimit
+	{
+		/** Minimum time (in milliseconds) between permitted calls */
+		private final long interval;
+
+		/** Earliest time (in milliseconds since the epoch) of the next
+		 *  permitted call */
+		private final AtomicLong next;
+
+		/**
+		 * @param interval minimum time (in milliseconds) between permitted calls
+		 */
+		public RateLimit(long interval)
+		{
+			this.interval = interval;
+			this.next = new AtomicLong();
+		}
+
+		/**
+		 * @return true if the caller may proceed, otherwise false
+		 */
+		public boolean tryAcquire()
+		{
+			long now = Clock.now();
+			long next = this.next.get();
+			return now >= next && this.next.compareAndSet(next, now + this.interval);
+		}
+	}
+}
@@ -1,5 +1,10 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.fabric.LinkFabric;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -10,16 +15,32 @@ public class Main
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
 	
-	public static void main(String[] args)
+	/** Placeholder for the device's name in per-device file names */
+	private static final String HOST_PLACEHOLDER = "%h";
+	
+	/**
+	 * Options shared by all devices run by this process.
+	 */
+	private static class Options
 	{
-		String host = null;
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
 		short port = DEFAULT_PORT;
-		VNSComm vnsComm = null;
-		Device dev = null;
+		boolean directLookup = false;
+		long triggerDelay = -1;
+		int workers = 0;
+		ThreadMode threadMode = ThreadMode.PLATFORM;
+		Topology topology = null;
+		boolean fabric = false;
+		long simulateTime = 0;
+	}
+	
+	public static void main(String[] args)
+	{
+		List<String> hosts = new ArrayList<String>();
+		Options options = new Options();
 		
 		// Parse arguments
 		for(int i = 0; i < args.length; i++)
@@ -31,37 +52,123 @@ public class Main
 				return;
 			}
 			else if(arg.equals("-p"))
-			{ port = Short.parseShort(args[++i]); }
+			{ options.port = Short.parseShort(args[++i]); }
 			else if (arg.equals("-v"))
-			{ host = args[++i]; }
+			{ hosts.addAll(Arrays.asList(args[++i].split(","))); }
+			else if (arg.equals("-T"))
+			{
+				options.topology = Topology.load(args[++i]);
+				if (null == options.topology)
+				{ return; }
+				hosts.addAll(options.topology.getDevices());
+			}
+			else if (arg.equals("-F"))
+			{ options.fabric = true; }
+			else if (arg.equals("-S"))
+			{
+				options.fabric = true;
+				options.simulateTime = Long.parseLong(args[++i]) * 1000;
+			}
 			else if (arg.equals("-s"))
-			{ server = args[++i]; }
+			{ options.server = args[++i]; }
 			else if (arg.equals("-l"))
-			{ logfile = args[++i]; }
+			{ options.logfile = args[++i]; }
 			else if (arg.equals("-r"))
-			{ routeTableFile = args[++i]; }
+			{ options.routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
-			{ arpCacheFile = args[++i]; }
+			{ options.arpCacheFile = args[++i]; }
+			else if (arg.equals("-d"))
+			{ options.directLookup = true; }
+			else if (arg.equals("-t"))
+			{ options.triggerDelay = Long.parseLong(args[++i]); }
+			else if (arg.equals("-m"))
+			{
+				try
+				{ options.threadMode = ThreadMode.valueOf(args[++i].toUpperCase()); }
+				catch (IllegalArgumentException e)
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-w"))
+			{ options.workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-L"))
+			{
+				if (!Log.configure(args[++i]))
+				{
+					usage();
+					return;
+				}
+			}
 		}
 		
-		if (null == host)
+		if (hosts.isEmpty() || (options.fabric && null == options.topology))
 		{
 			usage();
 			return;
 		}
 		
+		if (options.fabric)
+		{
+			runFabric(hosts, options);
+			return;
+		}
+		
+		// Start every device; they share the process's thread pools, timer
+		// wheel, and packet decoders
+		List<Device> devices = new ArrayList<Device>();
+		List<VNSComm> connections = new ArrayList<VNSComm>();
+		List<Thread> readLoops = new ArrayList<Thread>();
+		for (String host : hosts)
+		{
+			Device dev = createDevice(host, options);
+			if (null == dev)
+			{ return; }
+			VNSComm vnsComm = connect(dev, options);
+			configure(dev, options);
+			
+			// Read messages from the server until the server closes the connection
+			System.out.println("<-- " + host + " ready to process packets -->");
+			final VNSComm reader = vnsComm;
+			devices.add(dev);
+			connections.add(vnsComm);
+			readLoops.add(dev.startThread("VNS", () -> { while (reader.readFromServer()); }));
+		}
+		
+		for (int i = 0; i < devices.size(); i++)
+		{
+			try
+			{ readLoops.get(i).join(); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+			
+			// Shutdown the device
+			connections.get(i).stopWorkers();
+			devices.get(i).destroy();
+		}
+	}
+	
+	/**
+	 * Create a switch or router, depending on the first letter of its name.
+	 * @return the device; null if it could not be created
+	 */
+	private static Device createDevice(String host, Options options)
+	{
 		// Open PCAP dump file for logging packets sent/received by the router
 		DumpFile dump = null;
-		if (logfile != null)
+		if (options.logfile != null)
 		{
+			String logfile = forHost(options.logfile, host);
 			dump = DumpFile.open(logfile);
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
-				return;
+				return null;
 			}
 		}
 		
+		Device dev;
 		if (host.startsWith("s"))
 		{ dev = new Switch(host, dump); }
 		else if (host.startsWith("r"))
@@ -72,46 +179,162 @@ public class Main
 		else 
 		{
 			System.err.println("Device name must start with 's' or 'r'");
+			return null;
+		}
+		
+		dev.setThreadMode(options.threadMode);
+		return dev;
+	}
+	
+	/**
+	 * Run the devices linked to each other in memory, as described by the
+	 * topology, instead of through the server. The devices run until the
+	 * process is stopped, or for the simulated time, if any.
+	 */
+	private static void runFabric(List<String> hosts, Options options)
+	{
+		// Simulated devices run their work inline, in virtual time
+		SimulatedClock clock = null;
+		if (options.simulateTime > 0)
+		{
+			clock = new SimulatedClock();
+			Clock.set(clock);
+			options.threadMode = ThreadMode.INLINE;
+		}
+		
+		final LinkFabric fabric = new LinkFabric(options.topology);
+		final List<Device> devices = new ArrayList<Device>();
+		for (String host : hosts)
+		{
+			Device dev = createDevice(host, options);
+			if (null == dev)
+			{ return; }
+			if (!fabric.attach(dev))
+			{
+				System.err.println("Device " + host + " is not linked in the topology");
+				return;
+			}
+			System.out.println("Device " + host + " interfaces:");
+			for (Iface iface : dev.getInterfaces().values())
+			{ System.out.println(iface.toString()); }
+			devices.add(dev);
+		}
+		
+		// Frames sent while routing starts are queued until the fabric starts
+		for (Device dev : devices)
+		{
+			configure(dev, options);
+			System.out.println("<-- " + dev.getHost() + " ready to process packets -->");
+		}
+		
+		if (clock != null)
+		{
+			fabric.simulate(clock);
+			simulate(clock, devices, options.simulateTime);
 			return;
 		}
+		fabric.start();
+		
+		// Shutdown the devices when the process is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			fabric.stop();
+			for (Device dev : devices)
+			{ dev.destroy(); }
+		}));
+		fabric.await();
+	}
+	
+	/**
+	 * Run a simulation for a period of virtual time, then print the routers'
+	 * tables and shutdown the devices.
+	 */
+	private static void simulate(SimulatedClock clock, List<Device> devices,
+			long duration)
+	{
+		long start = System.nanoTime();
+		long events = clock.runFor(duration);
+		long elapsed = (System.nanoTime() - start) / 1000000;
 		
+		for (Device dev : devices)
+		{
+			if (dev instanceof Router)
+			{
+				System.out.println("RIP table of " + dev.getHost() + ":");
+				((Router)dev).printRIPTable();
+			}
+			dev.destroy();
+		}
+		System.out.println(String.format("Simulated %d s in %d ms (%d events)",
+				duration / 1000, elapsed, events));
+	}
+	
+	/**
+	 * Connect a device to the server and learn its interfaces.
+	 * @return the device's connection to the server
+	 */
+	private static VNSComm connect(Device dev, Options options)
+	{
 		// Connect to Virtual Network Simulator server and negotiate session
-		System.out.println(String.format("Connecting to server %s:%d", 
-				server, port));
-		vnsComm = new VNSComm(dev);
-		if (!vnsComm.connectToServer(port, server))
+		System.out.println(String.format("Connecting %s to server %s:%d", 
+				dev.getHost(), options.server, options.port));
+		VNSComm vnsComm = new VNSComm(dev);
+		if (!vnsComm.connectToServer(options.port, options.server))
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
-		
+
+		// Handle packets on worker threads, if requested
+		if (options.workers > 0)
+		{ vnsComm.startWorkers(options.workers); }
+		return vnsComm;
+	}
+	
+	/**
+	 * Load or start a router's routing, once its interfaces are known.
+	 */
+	private static void configure(Device dev, Options options)
+	{
 		if (dev instanceof Router) 
 		{
+			// Use DIR-24-8 lookups for the static route table
+			if (options.directLookup)
+			{ ((Router)dev).getRouteTable().enableDirectLookup(); }
+
 			// Read static route table
-			if (routeTableFile != null)
-			{ ((Router)dev).loadRouteTable(routeTableFile); }
+			if (options.routeTableFile != null)
+			{ ((Router)dev).loadRouteTable(forHost(options.routeTableFile, dev.getHost())); }
 
 			else{
+				if (options.triggerDelay >= 0)
+				{ ((Router)dev).setTriggerDelay(options.triggerDelay); }
 				((Router) dev).start();
 			}
 			
 			// Read static ACP cache
-			if (arpCacheFile != null)
-			{ ((Router)dev).loadArpCache(arpCacheFile); }
+			if (options.arpCacheFile != null)
+			{ ((Router)dev).loadArpCache(forHost(options.arpCacheFile, dev.getHost())); }
 		}
-
-		// Read messages from the server until the server closes the connection
-		System.out.println("<-- Ready to process packets -->");
-		while (vnsComm.readFromServer());
-		
-		// Shutdown the router
-		dev.destroy();
 	}
 	
+	/**
+	 * @return a file name with the device's name in place of the placeholder
+	 */
+	private static String forHost(String filename, String host)
+	{ return filename.replace(HOST_PLACEHOLDER, host); }
+	
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
-		System.out.println("VNet -v host [-s server] [-p port] [-h]");
-		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("VNet -v host[,host...] [-T topo_file [-F] [-S seconds]] [-s server] [-p port] [-h]");
+		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file] [-d]");
+		System.out.println("     [-t trigger_delay_ms] [-w workers] [-m platform|virtual|pool|inline]");
+		System.out.println("     [-L [category=]level,...]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println("  devices are run in one process; " + HOST_PLACEHOLDER 
+				+ " in a file name is replaced by the device's name");
+		System.out.println("  -F links the topology's devices in memory, without the server");
+		System.out.println("  -S simulates the linked devices for a period of virtual time");
+		System.out.println("  log levels: error, warn, info (default), debug;"
+				+ " categories: rip, sw, vns, vnet");
 	}
 }
@@ -0,0 +1,132 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.PriorityQueue;
+
+/**
+ * A clock for discrete-event simulation. Time only moves when the
+ * simulation is run, and jumps straight to the next scheduled task, so
+ * hours of timers run in as long as their tasks take. Tasks run on the 
+ * thread running the simulation, in order of their due time and then of
+ * scheduling, so a simulation whose devices run their work inline (see
+ * {@link ThreadMode#INLINE}) is deterministic.
+ */
+public class SimulatedClock extends Clock
+{
+	private static final Log log = Log.get("vnet");
+
+	/** Pending tasks, ordered by due time and then by scheduling order;
+	 *  guarded by this */
+	private final PriorityQueue<Event> events;
+
+	/** Current virtual time (in milliseconds); guarded by this */
+	private long now;
+
+	/** Number of tasks scheduled so far; guarded by this */
+	private long scheduled;
+
+	/**
+	 * Create a clock whose time starts at zero.
+	 */
+	public SimulatedClock()
+	{ this(0); }
+
+	/**
+	 * @param startTime initial virtual time (in milliseconds)
+	 */
+	public SimulatedClock(long startTime)
+	{
+		this.events = new PriorityQueue<Event>();
+		this.now = startTime;
+		this.scheduled = 0;
+	}
+
+	public synchronized long currentTimeMillis()
+	{ return this.now; }
+
+	public synchronized void schedule(Runnable task, long delay)
+	{ this.events.add(new Event(this.now + Math.max(0, delay), this.scheduled++, task)); }
+
+	/**
+	 * Run the next pending task, moving time forward to when it is due.
+	 * @return false if no task is pending, otherwise true
+	 */
+	public boolean step()
+	{ return this.step(Long.MAX_VALUE); }
+
+	/**
+	 * Run the next pending task if it is due by a time.
+	 * @return true if a task ran, otherwise false
+	 */
+	private boolean step(long limit)
+	{
+		Event event;
+		synchronized(this)
+		{
+			event = this.events.peek();
+			if (null == event || event.time > limit)
+			{ return false; }
+			this.events.poll();
+			this.now = Math.max(this.now, event.time);
+		}
+
+		// Run the task without holding the lock, so it can schedule more
+		try
+		{ event.task.run(); }
+		catch (RuntimeException e)
+		{ log.error("timer task failed: " + e); }
+		return true;
+	}
+
+	/**
+	 * Run the tasks due by a time, then move time forward to it.
+	 * @param time virtual time (in milliseconds) to run until
+	 * @return number of tasks run
+	 */
+	public long runUntil(long time)
+	{
+		long count = 0;
+		while (this.step(time))
+		{ count++; }
+		synchronized(this)
+		{ this.now = Math.max(this.now, time); }
+		return count;
+	}
+
+	/**
+	 * Run the tasks due in a period of virtual time.
+	 * @param duration length (in milliseconds) of the period
+	 * @return number of tasks run
+	 */
+	public long runFor(long duration)
+	{ return this.runUntil(this.currentTimeMillis() + duration); }
+
+	/**
+	 * @return number of tasks scheduled but not yet run
+	 */
+	public synchronized int getPending()
+	{ return this.events.size(); }
+
+	/**
+	 * A task and when it is due.
+	 */
+	private static class Event implements Comparable<Event>
+	{
+		final long time;
+		final long sequence;
+		final Runnable task;
+
+		Event(long time, long sequence, Runnable task)
+		{
+			this.time = time;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		public int compareTo(Event other)
+		{
+			if (this.time != other.time)
+			{ return Long.compare(this.time, other.time); }
+			return Long.compare(this.sequence, other.sequence);
+		}
+	}
+}
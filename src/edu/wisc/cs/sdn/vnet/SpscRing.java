@@ -0,0 +1,99 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue for exactly one producer thread and one consumer thread.
+ * Neither side takes a lock; each only writes its own index, and publishes
+ * it after the slot it covers has been filled or emptied. The tail is
+ * published with a full fence, so a consumer that checks the ring after 
+ * announcing it is about to sleep cannot miss an element added by a
+ * producer that checks the announcement after adding it.
+ * @param <E> type of the queued elements
+ */
+public class SpscRing<E>
+{
+	/** Queued elements; a slot is null when it is empty */
+	private final AtomicReferenceArray<E> slots;
+
+	/** Mask applied to an index to select its slot */
+	private final int mask;
+
+	/** Index of the next element to take; written only by the consumer */
+	private final AtomicLong head;
+
+	/** Index of the next element to add; written only by the producer */
+	private final AtomicLong tail;
+
+	/** Consumer's cached view of the tail, so it rarely reads the producer's
+	 *  index */
+	private long tailCache;
+
+	/** Producer's cached view of the head */
+	private long headCache;
+
+	/**
+	 * @param capacity maximum number of queued elements; rounded up to a
+	 *        power of two
+	 */
+	public SpscRing(int capacity)
+	{
+		capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new AtomicReferenceArray<E>(capacity);
+		this.mask = capacity - 1;
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+	}
+
+	/**
+	 * Add an element; must only be called by the producer.
+	 * @param e the element
+	 * @return true if the element was added, false if the ring is full
+	 */
+	public boolean offer(E e)
+	{
+		long tail = this.tail.get();
+		if (tail - this.headCache > this.mask)
+		{
+			this.headCache = this.head.get();
+			if (tail - this.headCache > this.mask)
+			{ return false; }
+		}
+		this.slots.lazySet((int)(tail & this.mask), e);
+		this.tail.set(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Take the oldest element; must only be called by the consumer.
+	 * @return the element; null if the ring is empty
+	 */
+	public E poll()
+	{
+		long head = this.head.get();
+		if (head >= this.tailCache)
+		{
+			this.tailCache = this.tail.get();
+			if (head >= this.tailCache)
+			{ return null; }
+		}
+		int slot = (int)(head & this.mask);
+		E e = this.slots.get(slot);
+		this.slots.lazySet(slot, null);
+		this.head.lazySet(head + 1);
+		return e;
+	}
+
+	/**
+	 * @return true if the ring holds no elements
+	 */
+	public boolean isEmpty()
+	{ return this.head.get() >= this.tail.get(); }
+
+	/**
+	 * @return maximum number of queued elements
+	 */
+	public int capacity()
+	{ return this.mask + 1; }
+}
@@ -0,0 +1,151 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How a device's background work runs. Short tasks, such as sending RIP
+ * updates, run on the mode's executor; long-running loops, such as reading
+ * from the server, run on threads started by the mode. Timers are kept on
+ * the process's {@link Clock} in every mode.
+ */
+public enum ThreadMode
+{
+	/** Each task runs on a platform thread, reused from a cached pool */
+	PLATFORM,
+
+	/** Each task and loop runs on its own virtual thread; falls back to
+	 *  platform threads if the JVM has no virtual threads */
+	VIRTUAL,
+
+	/** Tasks share a small pool of platform threads */
+	POOL,
+
+	/** Each task runs on the thread that submits it, such as the thread
+	 *  running a {@link SimulatedClock}; loops run on platform threads */
+	INLINE;
+
+	/** Number of threads in the shared pool */
+	public static final int POOL_SIZE = Math.max(2,
+			Runtime.getRuntime().availableProcessors());
+
+	private static final Log log = Log.get("vnet");
+
+	private static Executor platformExecutor;
+
+	private static Executor poolExecutor;
+
+	private static Executor virtualExecutor;
+
+	/** Creates virtual threads; null if the JVM has no virtual threads */
+	private static ThreadFactory virtualThreads;
+
+	private static boolean virtualChecked;
+
+	/**
+	 * @return executor for a device's short background tasks; shared by all
+	 *         devices using this mode
+	 */
+	public Executor executor()
+	{
+		if (INLINE == this)
+		{ return Runnable::run; }
+		synchronized(ThreadMode.class)
+		{
+			if (VIRTUAL == this && virtualThreadFactory() != null)
+			{
+				if (null == virtualExecutor)
+				{ virtualExecutor = newVirtualExecutor(); }
+				if (virtualExecutor != null)
+				{ return virtualExecutor; }
+			}
+			if (POOL == this)
+			{
+				if (null == poolExecutor)
+				{ poolExecutor = Executors.newFixedThreadPool(POOL_SIZE, daemonThreads("Pool")); }
+				return poolExecutor;
+			}
+			if (null == platformExecutor)
+			{ platformExecutor = Executors.newCachedThreadPool(daemonThreads("Task")); }
+			return platformExecutor;
+		}
+	}
+
+	/**
+	 * Start a long-running loop on its own thread.
+	 * @param name name of the thread
+	 * @param loop the loop
+	 * @return the started thread
+	 */
+	public Thread start(String name, Runnable loop)
+	{
+		ThreadFactory factory = null;
+		if (VIRTUAL == this)
+		{
+			synchronized(ThreadMode.class)
+			{ factory = virtualThreadFactory(); }
+		}
+		Thread thread;
+		if (factory != null)
+		{ thread = factory.newThread(loop); }
+		else
+		{
+			thread = new Thread(loop);
+			thread.setDaemon(true);
+		}
+		thread.setName(name);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Look up the JVM's virtual thread factory, Thread.ofVirtual().factory(),
+	 * by reflection, so the code still runs on JVMs without virtual threads.
+	 * Must be called with the class locked.
+	 * @return the factory; null if the JVM has no virtual threads
+	 */
+	private static ThreadFactory virtualThreadFactory()
+	{
+		if (!virtualChecked)
+		{
+			virtualChecked = true;
+			try
+			{
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				virtualThreads = (ThreadFactory)Class.forName("java.lang.Thread$Builder")
+						.getMethod("factory").invoke(builder);
+			}
+			catch (ReflectiveOperationException | RuntimeException e)
+			{ log.warn("virtual threads are not available; using platform threads"); }
+		}
+		return virtualThreads;
+	}
+
+	private static Executor newVirtualExecutor()
+	{
+		try
+		{
+			return (ExecutorService)Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{ return null; }
+	}
+
+	private static ThreadFactory daemonThreads(final String prefix)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
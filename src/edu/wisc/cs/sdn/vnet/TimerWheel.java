@@ -0,0 +1,199 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * A hashed timer wheel for expiring state such as MAC table and route
+ * entries. Timers are kept in a ring of buckets, one per tick; scheduling
+ * and cancelling a timer are constant time, and each tick only visits the
+ * timers in one bucket. Tasks run on the wheel's thread and should return
+ * quickly.
+ */
+public class TimerWheel implements Runnable
+{
+	/** Default length (in milliseconds) of a tick */
+	public static final int DEFAULT_TICK = 100;
+
+	/** Default number of buckets in the wheel */
+	public static final int DEFAULT_SIZE = 512;
+
+	private static final Log log = Log.get("vnet");
+
+	/** Wheel shared by all devices in the process */
+	private static TimerWheel shared;
+
+	/** Length (in milliseconds) of a tick */
+	private final long tick;
+
+	/** Timers due in each bucket; each bucket is a list headed by a sentinel */
+	private final Timeout[] buckets;
+
+	/** Mask applied to a tick number to select its bucket */
+	private final int mask;
+
+	/** Number of ticks processed; guarded by this */
+	private long ticks;
+
+	/** Time (in milliseconds since the epoch) the wheel started */
+	private final long startTime;
+
+	/** Thread that advances the wheel */
+	private Thread tickThread;
+
+	/**
+	 * Create and start a wheel with the default tick length and size.
+	 */
+	public TimerWheel()
+	{ this(DEFAULT_TICK, DEFAULT_SIZE); }
+
+	/**
+	 * Create and start a wheel.
+	 * @param tick length (in milliseconds) of a tick; timers fire at most
+	 *        one tick late
+	 * @param size number of buckets; rounded up to a power of two
+	 */
+	public TimerWheel(long tick, int size)
+	{
+		size = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+		this.tick = tick;
+		this.buckets = new Timeout[size];
+		for (int i = 0; i < size; i++)
+		{ this.buckets[i] = new Timeout(null); }
+		this.mask = size - 1;
+		this.ticks = 0;
+		this.startTime = System.currentTimeMillis();
+		this.tickThread = new Thread(this, "TimerWheel");
+		this.tickThread.setDaemon(true);
+		this.tickThread.start();
+	}
+
+	/**
+	 * @return the wheel shared by all devices in the process
+	 */
+	public static synchronized TimerWheel getShared()
+	{
+		if (null == shared)
+		{ shared = new TimerWheel(); }
+		return shared;
+	}
+
+	/**
+	 * Run a task once after a delay.
+	 * @param task the task to run
+	 * @param delay delay (in milliseconds) before the task runs
+	 * @return a handle that can be used to cancel the task
+	 */
+	public synchronized Timeout schedule(Runnable task, long delay)
+	{
+		// Round up, so a task never runs early
+		long elapsed = System.currentTimeMillis() - this.startTime;
+		long due = Math.max((elapsed + Math.max(0, delay) + this.tick - 1) / this.tick,
+				this.ticks + 1);
+		Timeout timeout = new Timeout(task);
+		timeout.rounds = (due - this.ticks - 1) / this.buckets.length;
+		timeout.link(this.buckets[(int)(due & this.mask)]);
+		return timeout;
+	}
+
+	/**
+	 * Cancel a task if it has not run yet.
+	 * @param timeout handle returned when the task was scheduled
+	 * @return true if the task was cancelled, false if it already ran or
+	 *         was already cancelled
+	 */
+	public synchronized boolean cancel(Timeout timeout)
+	{
+		if (null == timeout.next)
+		{ return false; }
+		timeout.unlink();
+		return true;
+	}
+
+	/**
+	 * Advance the wheel one bucket per tick, running the tasks that are due.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			Timeout due = null;
+			synchronized(this)
+			{
+				long wait = (this.ticks + 1) * this.tick
+						- (System.currentTimeMillis() - this.startTime);
+				if (wait > 0)
+				{
+					try
+					{ this.wait(wait); }
+					catch (InterruptedException e)
+					{ break; }
+					continue;
+				}
+
+				this.ticks++;
+				Timeout bucket = this.buckets[(int)(this.ticks & this.mask)];
+				for (Timeout timeout = bucket.next; timeout != bucket; )
+				{
+					Timeout next = timeout.next;
+					if (timeout.rounds > 0)
+					{ timeout.rounds--; }
+					else
+					{
+						timeout.unlink();
+						timeout.nextDue = due;
+						due = timeout;
+					}
+					timeout = next;
+				}
+			}
+
+			// Run tasks without holding the lock, so they can reschedule
+			for (; due != null; due = due.nextDue)
+			{
+				try
+				{ due.task.run(); }
+				catch (RuntimeException e)
+				{ log.error("timer task failed: " + e); }
+			}
+		}
+	}
+
+	/**
+	 * A scheduled task. Timeouts are linked into a bucket while pending;
+	 * a sentinel with no task heads each bucket.
+	 */
+	public static class Timeout
+	{
+		private final Runnable task;
+		private long rounds;
+		private Timeout prev;
+		private Timeout next;
+
+		/** Next task to run in the same tick, once removed from its bucket */
+		private Timeout nextDue;
+
+		private Timeout(Runnable task)
+		{
+			this.task = task;
+			if (null == task)
+			{
+				this.prev = this;
+				this.next = this;
+			}
+		}
+
+		private void link(Timeout head)
+		{
+			this.prev = head.prev;
+			this.next = head;
+			head.prev.next = this;
+			head.prev = this;
+		}
+
+		private void unlink()
+		{
+			this.prev.next = this.next;
+			this.next.prev = this.prev;
+			this.prev = null;
+			this.next = null;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The virtual devices (switches and routers) in a topology file, such as
+ * those in the topos directory, and the links between them. Hosts are
+ * emulated by mininet, so they are not included in the devices.
+ */
+public class Topology
+{
+	/** Names of the switches and routers, in the order they are listed */
+	private List<String> devices;
+
+	/** Addresses (ip/prefix) of each router's interfaces, in order */
+	private Map<String,List<String>> addresses;
+
+	/** Links, in the order they are listed */
+	private List<Link> links;
+
+	/** Number of interfaces given to each node by the links so far */
+	private Map<String,Integer> ifaceCounts;
+
+	/** Names of the hosts */
+	private List<String> hosts;
+
+	private Topology()
+	{
+		this.devices = new ArrayList<String>();
+		this.addresses = new HashMap<String,List<String>>();
+		this.links = new ArrayList<Link>();
+		this.ifaceCounts = new HashMap<String,Integer>();
+		this.hosts = new ArrayList<String>();
+	}
+
+	/**
+	 * Load a topology from a file.
+	 * @param filename the name of the topology file
+	 * @return the topology; null if the file could not be read or is invalid
+	 */
+	public static Topology load(String filename)
+	{
+		Topology topology = new Topology();
+		try (BufferedReader reader = new BufferedReader(new FileReader(filename)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] parts = line.trim().split("\\s+");
+				boolean valid = true;
+				if (parts[0].equals("switch"))
+				{
+					valid = (parts.length >= 2);
+					if (valid)
+					{ topology.devices.add(parts[1]); }
+				}
+				else if (parts[0].equals("router"))
+				{
+					valid = (parts.length >= 3);
+					if (valid)
+					{
+						topology.devices.add(parts[1]);
+						topology.addresses.put(parts[1],
+								Arrays.asList(parts).subList(2, parts.length));
+					}
+				}
+				else if (parts[0].equals("host"))
+				{
+					valid = (parts.length >= 2);
+					if (valid)
+					{ topology.hosts.add(parts[1]); }
+				}
+				else if (parts[0].equals("link"))
+				{
+					valid = (parts.length >= 3);
+					if (valid)
+					{
+						topology.links.add(new Link(parts[1], topology.nextIface(parts[1]),
+								parts[2], topology.nextIface(parts[2])));
+					}
+				}
+				if (!valid)
+				{
+					System.err.println("Error in topology configuration line: " + line);
+					return null;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot read topology file " + filename);
+			return null;
+		}
+		return topology;
+	}
+
+	/**
+	 * Name the next interface of a node the way mininet does: a host's
+	 * interfaces are numbered from eth0, and a switch's or router's from eth1,
+	 * in the order of the node's links.
+	 */
+	private String nextIface(String node)
+	{
+		Integer count = this.ifaceCounts.get(node);
+		if (null == count)
+		{ count = this.hosts.contains(node) ? 0 : 1; }
+		this.ifaceCounts.put(node, count + 1);
+		return "eth" + count;
+	}
+
+	/**
+	 * @return names of the switches and routers, in the order they are listed
+	 */
+	public List<String> getDevices()
+	{ return this.devices; }
+
+	/**
+	 * @return names of the hosts, in the order they are listed
+	 */
+	public List<String> getHosts()
+	{ return this.hosts; }
+
+	/**
+	 * @param router name of a router
+	 * @return addresses (ip/prefix) of the router's interfaces, in order;
+	 *         empty if the device is not a router
+	 */
+	public List<String> getAddresses(String router)
+	{
+		List<String> routerAddresses = this.addresses.get(router);
+		return (null == routerAddresses) ? new ArrayList<String>() : routerAddresses;
+	}
+
+	/**
+	 * @return links between nodes, in the order they are listed
+	 */
+	public List<Link> getLinks()
+	{ return this.links; }
+
+	/**
+	 * A link between interfaces on two nodes.
+	 */
+	public static class Link
+	{
+		private String nodeA;
+		private String ifaceA;
+		private String nodeB;
+		private String ifaceB;
+
+		public Link(String nodeA, String ifaceA, String nodeB, String ifaceB)
+		{
+			this.nodeA = nodeA;
+			this.ifaceA = ifaceA;
+			this.nodeB = nodeB;
+			this.ifaceB = ifaceB;
+		}
+
+		public String getNodeA()
+		{ return this.nodeA; }
+
+		public String getIfaceA()
+		{ return this.ifaceA; }
+
+		public String getNodeB()
+		{ return this.nodeB; }
+
+		public String getIfaceB()
+		{ return this.ifaceB; }
+
+		public String toString()
+		{ return this.nodeA + "." + this.ifaceA + " <-> " + this.nodeB + "." + this.ifaceB; }
+	}
+}
@@ -0,0 +1,26 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * Carries the frames a device sends out its interfaces, such as a
+ * connection to the Virtual Network Simulator server or in-process links.
+ */
+public interface Transport
+{
+	/**
+	 * Send a serialized Ethernet frame out an interface. The frame may be
+	 * queued, and must not be modified until it is written.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface to send the frame out
+	 * @return true if the frame was sent, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			String ifaceName);
+	
+	/**
+	 * Write the frames queued by sends.
+	 * @return true if the frames were written, otherwise false
+	 */
+	public boolean flush();
+}
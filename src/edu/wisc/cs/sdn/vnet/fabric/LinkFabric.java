@@ -0,0 +1,444 @@
+package edu.wisc.cs.sdn.vnet.fabric;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.SimulatedClock;
+import edu.wisc.cs.sdn.vnet.SpscRing;
+import edu.wisc.cs.sdn.vnet.Topology;
+import edu.wisc.cs.sdn.vnet.Transport;
+
+/**
+ * Links the devices of a topology to each other in memory, instead of
+ * through the Virtual Network Simulator server. Each device's interfaces
+ * are created from the topology, as mininet would create them, and each
+ * direction of a link is a ring of frames read by the receiving device's
+ * thread.
+ * <p>
+ * A frame sent out an interface is copied into the ring of the link's
+ * other end; if the ring is full, the frame is dropped, as a link's queue
+ * would drop it. Frames sent to hosts are dropped, since hosts are not
+ * emulated; frames can be sent from a host with
+ * {@link #inject(String, String, byte[])}.
+ * <p>
+ * In a simulation, frames are instead handled by tasks on a
+ * {@link SimulatedClock}, so they are delivered in a repeatable order
+ * without any device threads.
+ */
+public class LinkFabric
+{
+	/** Default number of frames queued in each direction of a link */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/** Longest time (in nanoseconds) an idle device sleeps before checking
+	 *  whether the fabric has stopped */
+	private static final long IDLE_NANOS = 100000000;
+
+	/** Minimum time (in milliseconds) between warnings about dropped frames */
+	private static final long DROP_WARNING_INTERVAL = 1000;
+
+	/** MAC addresses of router interfaces are locally administered */
+	private static final long MAC_PREFIX = 0x020000000000L;
+
+	private static final Log log = Log.get("vnet");
+
+	private final Topology topology;
+
+	/** Nodes (devices and hosts) in the topology; maps names to nodes */
+	private final Map<String,Node> nodes;
+
+	/** Number of frames dropped because a link's queue was full */
+	private final AtomicLong dropped;
+
+	/** Limits how often dropped frames are reported */
+	private final Log.RateLimit dropWarnings;
+
+	private volatile boolean stopped;
+
+	/** Clock whose tasks handle received frames; null if each device's
+	 *  thread handles them */
+	private SimulatedClock simulation;
+
+	/**
+	 * Create the links of a topology.
+	 * @param topology the topology
+	 */
+	public LinkFabric(Topology topology)
+	{ this(topology, DEFAULT_QUEUE_SIZE); }
+
+	/**
+	 * Create the links of a topology.
+	 * @param topology the topology
+	 * @param queueSize number of frames queued in each direction of a link
+	 */
+	public LinkFabric(Topology topology, int queueSize)
+	{
+		this.topology = topology;
+		this.nodes = new HashMap<String,Node>();
+		this.dropped = new AtomicLong();
+		this.dropWarnings = new Log.RateLimit(DROP_WARNING_INTERVAL);
+		for (Topology.Link link : topology.getLinks())
+		{
+			Port a = this.getNode(link.getNodeA()).addPort(link.getIfaceA(), queueSize);
+			Port b = this.getNode(link.getNodeB()).addPort(link.getIfaceB(), queueSize);
+			a.peer = b;
+			b.peer = a;
+		}
+	}
+
+	private Node getNode(String name)
+	{
+		Node node = this.nodes.get(name);
+		if (null == node)
+		{
+			node = new Node(this.nodes.size());
+			this.nodes.put(name, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Give a device its interfaces from the topology, and send its frames
+	 * over the fabric. Routers' interfaces get the addresses listed in the
+	 * topology, in order, and MAC addresses unique within the fabric.
+	 * @param device a switch or router in the topology
+	 * @return false if the device is not in the topology, otherwise true
+	 */
+	public boolean attach(Device device)
+	{
+		Node node = this.nodes.get(device.getHost());
+		if (null == node)
+		{ return false; }
+		node.device = device;
+
+		List<String> addresses = this.topology.getAddresses(device.getHost());
+		for (int i = 0; i < node.ports.size(); i++)
+		{
+			Port port = node.ports.get(i);
+			port.iface = device.addInterface(port.name);
+			if (i < addresses.size())
+			{
+				String[] address = addresses.get(i).split("/");
+				int prefix = (address.length > 1) ? Integer.parseInt(address[1]) : 24;
+				port.iface.setIpAddress(IPv4.toIPv4Address(address[0]));
+				port.iface.setSubnetMask((int)(0xffffffffL << (32 - prefix)));
+				port.iface.setMacAddress(MACAddress.valueOf(
+						MAC_PREFIX | ((long)node.id << 8) | (i + 1)));
+			}
+		}
+		device.setTransport(node);
+		return true;
+	}
+
+	/**
+	 * Start a thread for each attached device to handle the frames it
+	 * receives.
+	 */
+	public void start()
+	{
+		for (Map.Entry<String,Node> entry : this.nodes.entrySet())
+		{
+			Node node = entry.getValue();
+			if (node.device != null)
+			{ node.thread = node.device.startThread("Fabric", node); }
+		}
+	}
+
+	/**
+	 * Handle received frames with tasks on a simulated clock, instead of
+	 * on device threads; called instead of {@link #start()}. Frames are 
+	 * handled when the clock is run, at the time they are sent.
+	 * @param clock the simulated clock
+	 */
+	public void simulate(SimulatedClock clock)
+	{ this.simulation = clock; }
+
+	/**
+	 * Stop the devices' threads once they have handled the frames queued
+	 * for them.
+	 */
+	public void stop()
+	{
+		this.stopped = true;
+		for (Node node : this.nodes.values())
+		{
+			if (null == node.thread)
+			{ continue; }
+			node.wake();
+			try
+			{ node.thread.join(); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+	}
+
+	/**
+	 * Wait until the fabric is stopped and the devices' threads finish.
+	 */
+	public void await()
+	{
+		for (Node node : this.nodes.values())
+		{
+			if (null == node.thread)
+			{ continue; }
+			try
+			{ node.thread.join(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Send a frame from a host into the fabric.
+	 * @param host name of the host
+	 * @param ifaceName name of the host's interface, such as eth0
+	 * @param frame the frame
+	 * @return true if the frame was queued for the device at the other end
+	 *         of the link, otherwise false
+	 */
+	public boolean inject(String host, String ifaceName, byte[] frame)
+	{
+		Node node = this.nodes.get(host);
+		return (node != null) && node.sendFrame(frame, 0, frame.length, ifaceName);
+	}
+
+	/**
+	 * @return number of frames dropped because a link's queue was full
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	/**
+	 * One end of a link: an interface and the frames received on it.
+	 */
+	private static class Port
+	{
+		final Node node;
+		final String name;
+
+		/** Frames received on the interface; filled by the sending end,
+		 *  which holds this port's lock while it adds to the ring */
+		final SpscRing<byte[]> ring;
+
+		/** Other end of the link */
+		Port peer;
+
+		/** Device's interface for the port; null if the node is a host */
+		Iface iface;
+
+		Port(Node node, String name, int queueSize)
+		{
+			this.node = node;
+			this.name = name;
+			this.ring = new SpscRing<byte[]>(queueSize);
+		}
+	}
+
+	/**
+	 * A device or host in the fabric. A device's frames are sent through its
+	 * node, and the frames it receives are handled by the node's thread.
+	 */
+	private class Node implements Transport, Runnable
+	{
+		/** Position of the node in the fabric */
+		final int id;
+
+		final List<Port> ports;
+
+		final Map<String,Port> portsByName;
+
+		/** Device attached to the node; null if the node is a host */
+		volatile Device device;
+
+		volatile Thread thread;
+
+		/** True while the thread is, or is about to be, parked */
+		volatile boolean waiting;
+
+		/** True while a simulation task to handle the node's frames is
+		 *  pending; guarded by this */
+		boolean drainPending;
+
+		Node(int id)
+		{
+			this.id = id;
+			this.ports = new ArrayList<Port>();
+			this.portsByName = new HashMap<String,Port>();
+		}
+
+		Port addPort(String name, int queueSize)
+		{
+			Port port = new Port(this, name, queueSize);
+			this.ports.add(port);
+			this.portsByName.put(name, port);
+			return port;
+		}
+
+		void wake()
+		{
+			if (simulation != null)
+			{
+				synchronized(this)
+				{
+					if (this.drainPending)
+					{ return; }
+					this.drainPending = true;
+				}
+				simulation.schedule(() -> {
+					synchronized(this)
+					{ this.drainPending = false; }
+					while (this.drain());
+				}, 0);
+				return;
+			}
+			if (this.waiting)
+			{
+				this.waiting = false;
+				LockSupport.unpark(this.thread);
+			}
+		}
+
+		/**
+		 * Copy a frame into the queue of the link's other end, since the
+		 * sender may send the same frame again.
+		 */
+		public boolean sendFrame(byte[] frame, int offset, int length,
+				String ifaceName)
+		{
+			Port port = this.portsByName.get(ifaceName);
+			if (null == port)
+			{ return false; }
+			Device device = this.device;
+			if (device != null && device.getLogFile() != null)
+			{ device.getLogFile().dump(frame, offset, length); }
+			return this.transmit(port, Arrays.copyOfRange(frame, offset, offset + length));
+		}
+
+		/**
+		 * Queue a frame owned by the fabric for the link's other end.
+		 */
+		boolean transmit(Port port, byte[] frame)
+		{
+			Port peer = port.peer;
+			if (null == peer.node.device)
+			{ return true; }
+			boolean queued;
+			synchronized(peer)
+			{ queued = peer.ring.offer(frame); }
+			if (!queued)
+			{
+				long count = dropped.incrementAndGet();
+				if (dropWarnings.tryAcquire())
+				{ log.warn("link queues full; dropped " + count + " frames"); }
+				return false;
+			}
+			peer.node.wake();
+			return true;
+		}
+
+		/**
+		 * Frames are delivered as soon as they are sent.
+		 */
+		public boolean flush()
+		{ return true; }
+
+		public void run()
+		{
+			while (true)
+			{
+				if (this.drain())
+				{ continue; }
+
+				if (stopped)
+				{ return; }
+
+				// Announce the wait before the last check, so senders either
+				// see the announcement or this thread sees the frame
+				this.waiting = true;
+				if (!stopped && this.allEmpty())
+				{ LockSupport.parkNanos(this, IDLE_NANOS); }
+				this.waiting = false;
+			}
+		}
+
+		/**
+		 * Handle up to one frame from each port.
+		 * @return true if any frame was handled, otherwise false
+		 */
+		private boolean drain()
+		{
+			boolean received = false;
+			for (Port port : this.ports)
+			{
+				byte[] frame = port.ring.poll();
+				if (frame != null)
+				{
+					received = true;
+					try
+					{ this.receive(port, frame); }
+					catch (RuntimeException e)
+					{ log.error("failed to handle frame: " + e); }
+				}
+			}
+			return received;
+		}
+
+		private boolean allEmpty()
+		{
+			for (Port port : this.ports)
+			{
+				if (!port.ring.isEmpty())
+				{ return false; }
+			}
+			return true;
+		}
+
+		/**
+		 * Handle a frame received on a port. The device forwards the frame
+		 * on its raw path if it can; otherwise the frame is decoded and
+		 * passed to the device.
+		 */
+		private void receive(Port port, byte[] frame)
+		{
+			Device device = this.device;
+			if (device.getLogFile() != null)
+			{ device.getLogFile().dump(frame, 0, frame.length); }
+
+			// The frame belongs to this thread, so it can be rewritten in
+			// place and sent on
+			Iface outIface = device.forwardFrame(ByteBuffer.wrap(frame), 0,
+					frame.length, port.iface);
+			if (outIface != null)
+			{
+				Port outPort = this.portsByName.get(outIface.getName());
+				if (outPort != null)
+				{
+					if (device.getLogFile() != null)
+					{ device.getLogFile().dump(frame, 0, frame.length); }
+					this.transmit(outPort, frame);
+				}
+				return;
+			}
+
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.deserialize(frame, 0, frame.length);
+			device.handlePacket(etherPacket, port.iface);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import edu.wisc.cs.sdn.vnet.Clock;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
@@ -9,8 +10,8 @@ import net.floodlightcontroller.packet.MACAddress;
  */
 public class ArpEntry 
 {
-	/** MAC address corresponding to IP address */
-	private MACAddress mac;
+	/** MAC address corresponding to IP address, in the lower 48 bits */
+	private long mac;
 
 	/** IP address corresponding to MAC address */
 	private int ip;
@@ -24,16 +25,32 @@ public class ArpEntry
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac.toLong(), ip); }
+
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address, in the lower 48 
+	 *        bits of a long
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public ArpEntry(long mac, int ip)
 	{
 		this.mac = mac;
 		this.ip = ip;
-		this.timeAdded = System.currentTimeMillis();
+		this.timeAdded = Clock.now();
 	}
 
 	/**
 	 * @return MAC address corresponding to IP address
 	 */
 	public MACAddress getMac()
+	{ return MACAddress.valueOf(this.mac); }
+
+	/**
+	 * @return MAC address corresponding to IP address, in the lower 48 bits
+	 *         of a long
+	 */
+	public long getMacLong()
 	{ return this.mac; }
 
 	/**
@@ -51,6 +68,6 @@ public class ArpEntry
 	public String toString()
 	{
 		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
-				this.mac.toString());
+				MACAddress.valueOf(this.mac).toString());
 	}
 }
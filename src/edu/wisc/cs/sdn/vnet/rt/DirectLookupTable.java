@@ -0,0 +1,306 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DIR-24-8 lookup engine for a route table. The top 24 bits of an address
+ * index a first-level table that holds either a next hop index or the number
+ * of a 256-slot second-level block for prefixes longer than /24, so a lookup
+ * is one or two array reads. Writers must be serialized by the caller.
+ * <p>
+ * Lookups do not lock, so slots are written with release stores, and a new
+ * second-level block is filled before the first-level slot refers to it.
+ * Second-level blocks and next hop indexes are never reused once released,
+ * since a lookup may still hold one; the caller replaces the table with a
+ * new copy when {@link #needsRebuild()} says enough of them were released.
+ */
+class DirectLookupTable
+{
+	/** Flag marking a first-level slot that refers to a second-level block */
+	private static final int BLOCK_FLAG = 0x8000;
+
+	/** Largest next hop index or block number that fits in a slot */
+	private static final int MAX_INDEX = BLOCK_FLAG - 1;
+
+	/** Number of slots in a second-level block */
+	private static final int BLOCK_SIZE = 256;
+
+	/** Number of released blocks and next hop indexes after which the
+	 *  table should be rebuilt */
+	private static final int REBUILD_THRESHOLD = 4096;
+
+	/** Access to first- and second-level slots with release/acquire ordering */
+	private static final VarHandle SLOT =
+			MethodHandles.arrayElementVarHandle(short[].class);
+
+	/** First-level table indexed by the top 24 bits of an address */
+	private final short[] tbl24;
+
+	/** Prefix length of the route held in each first-level slot */
+	private final byte[] len24;
+
+	/** Second-level blocks, stored back to back */
+	private volatile short[] tbl8;
+
+	/** Prefix length of the route held in each second-level slot */
+	private byte[] len8;
+
+	/** Number of second-level blocks ever allocated */
+	private int blocks;
+
+	/** Route entries indexed by next hop index; index 0 means no route */
+	private volatile RouteEntry[] nextHops;
+
+	/** Next hop index assigned to each route entry */
+	private Map<RouteEntry,Integer> indexes;
+
+	/** Number of blocks and next hop indexes released since the table was
+	 *  built; they are not reused */
+	private int released;
+
+	/** Lowest next hop index that has never been assigned */
+	private int nextIndex;
+
+	DirectLookupTable()
+	{
+		this.tbl24 = new short[1 << 24];
+		this.len24 = new byte[1 << 24];
+		this.tbl8 = new short[BLOCK_SIZE * 16];
+		this.len8 = new byte[BLOCK_SIZE * 16];
+		this.blocks = 0;
+		this.nextHops = new RouteEntry[64];
+		this.indexes = new IdentityHashMap<RouteEntry,Integer>();
+		this.released = 0;
+		this.nextIndex = 1;
+	}
+
+	/**
+	 * Lookup the route entry with the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	RouteEntry lookup(int ip)
+	{
+		int slot = (short)SLOT.getAcquire(this.tbl24, ip >>> 8) & 0xffff;
+		if ((slot & BLOCK_FLAG) != 0)
+		{ slot = (short)SLOT.getAcquire(this.tbl8, ((slot & MAX_INDEX) << 8) | (ip & 0xff)) & 0xffff; }
+		return this.nextHops[slot];
+	}
+
+	/**
+	 * Add a route entry to the lookup tables.
+	 * @param entry the route entry to add
+	 */
+	void insert(RouteEntry entry)
+	{
+		int mask = entry.getMaskAddress();
+		int prefix = entry.getDestinationAddress() & mask;
+		int length = Integer.bitCount(mask);
+		int index = this.assignIndex(entry);
+
+		if (length <= 24)
+		{
+			int first = prefix >>> 8;
+			int count = 1 << (24 - length);
+			for (int slot = first; slot < first + count; slot++)
+			{
+				int value = this.tbl24[slot] & 0xffff;
+				if ((value & BLOCK_FLAG) != 0)
+				{
+					int base = (value & MAX_INDEX) * BLOCK_SIZE;
+					this.fillBlock(base, BLOCK_SIZE, index, length);
+				}
+				else if (this.len24[slot] <= length)
+				{
+					this.len24[slot] = (byte)length;
+					SLOT.setRelease(this.tbl24, slot, (short)index);
+				}
+			}
+		}
+		else
+		{
+			int base = this.blockFor(prefix >>> 8) * BLOCK_SIZE;
+			int first = prefix & 0xff;
+			int count = 1 << (32 - length);
+			this.fillBlock(base + first, count, index, length);
+		}
+	}
+
+	/**
+	 * Remove a route entry from the lookup tables.
+	 * @param entry the route entry to remove
+	 * @param remaining route entries that are still in the route table
+	 */
+	void remove(RouteEntry entry, List<RouteEntry> remaining)
+	{
+		Integer assigned = this.indexes.remove(entry);
+		if (null == assigned)
+		{ return; }
+		int index = assigned;
+
+		int mask = entry.getMaskAddress();
+		int prefix = entry.getDestinationAddress() & mask;
+		int length = Integer.bitCount(mask);
+
+		// Slots that held the removed route fall back to the longest
+		// remaining prefix that covers it
+		RouteEntry cover = null;
+		int coverLength = 0;
+		for (RouteEntry other : remaining)
+		{
+			int otherMask = other.getMaskAddress();
+			int otherLength = Integer.bitCount(otherMask);
+			if (otherLength <= length
+					&& (prefix & otherMask) == (other.getDestinationAddress() & otherMask)
+					&& (null == cover || otherLength > coverLength))
+			{
+				cover = other;
+				coverLength = otherLength;
+			}
+		}
+		int coverIndex = (null == cover) ? 0 : this.indexes.get(cover);
+
+		if (length <= 24)
+		{
+			int first = prefix >>> 8;
+			int count = 1 << (24 - length);
+			for (int slot = first; slot < first + count; slot++)
+			{
+				int value = this.tbl24[slot] & 0xffff;
+				if ((value & BLOCK_FLAG) != 0)
+				{
+					int base = (value & MAX_INDEX) * BLOCK_SIZE;
+					this.replaceInBlock(base, BLOCK_SIZE, index, coverIndex, coverLength);
+				}
+				else if (value == index)
+				{
+					this.len24[slot] = (byte)coverLength;
+					SLOT.setRelease(this.tbl24, slot, (short)coverIndex);
+				}
+			}
+		}
+		else
+		{
+			int value = this.tbl24[prefix >>> 8] & 0xffff;
+			if ((value & BLOCK_FLAG) != 0)
+			{
+				int base = (value & MAX_INDEX) * BLOCK_SIZE;
+				this.replaceInBlock(base + (prefix & 0xff), 1 << (32 - length),
+						index, coverIndex, coverLength);
+				this.collapseBlock(prefix >>> 8, base);
+			}
+		}
+
+		this.releaseIndex(index);
+	}
+
+	private void fillBlock(int first, int count, int index, int length)
+	{
+		short[] blocks = this.tbl8;
+		for (int slot = first; slot < first + count; slot++)
+		{
+			if (this.len8[slot] <= length)
+			{
+				this.len8[slot] = (byte)length;
+				SLOT.setRelease(blocks, slot, (short)index);
+			}
+		}
+	}
+
+	private void replaceInBlock(int first, int count, int index, int coverIndex,
+			int coverLength)
+	{
+		short[] blocks = this.tbl8;
+		for (int slot = first; slot < first + count; slot++)
+		{
+			if ((blocks[slot] & 0xffff) == index)
+			{
+				this.len8[slot] = (byte)coverLength;
+				SLOT.setRelease(blocks, slot, (short)coverIndex);
+			}
+		}
+	}
+
+	/**
+	 * Point a first-level slot straight at its route again once its block
+	 * holds no prefixes longer than /24; every slot of the block then holds
+	 * the same route. The block is released, not reused.
+	 */
+	private void collapseBlock(int slot, int base)
+	{
+		for (int i = base; i < base + BLOCK_SIZE; i++)
+		{
+			if (this.len8[i] > 24)
+			{ return; }
+		}
+		this.len24[slot] = this.len8[base];
+		SLOT.setRelease(this.tbl24, slot, this.tbl8[base]);
+		this.released++;
+	}
+
+	/**
+	 * Get the second-level block for a first-level slot, creating it from
+	 * the slot's current route if the slot does not have one yet.
+	 */
+	private int blockFor(int slot)
+	{
+		int value = this.tbl24[slot] & 0xffff;
+		if ((value & BLOCK_FLAG) != 0)
+		{ return value & MAX_INDEX; }
+
+		if (this.blocks >= MAX_INDEX)
+		{ throw new IllegalStateException("Too many prefixes longer than /24"); }
+		int block = this.blocks++;
+		if ((block + 1) * BLOCK_SIZE > this.len8.length)
+		{
+			this.len8 = Arrays.copyOf(this.len8, this.len8.length * 2);
+			this.tbl8 = Arrays.copyOf(this.tbl8, this.tbl8.length * 2);
+		}
+
+		// Fill the block before publishing it; the release store orders
+		// the fill before the reference
+		int base = block * BLOCK_SIZE;
+		Arrays.fill(this.tbl8, base, base + BLOCK_SIZE, (short)value);
+		Arrays.fill(this.len8, base, base + BLOCK_SIZE, this.len24[slot]);
+		SLOT.setRelease(this.tbl24, slot, (short)(BLOCK_FLAG | block));
+		return block;
+	}
+
+	private int assignIndex(RouteEntry entry)
+	{
+		if (this.nextIndex > MAX_INDEX)
+		{ throw new IllegalStateException("Too many routes"); }
+		int index = this.nextIndex++;
+
+		RouteEntry[] hops = this.nextHops;
+		if (index >= hops.length)
+		{ hops = Arrays.copyOf(hops, hops.length * 2); }
+		hops[index] = entry;
+		this.nextHops = hops;
+		this.indexes.put(entry, index);
+		return index;
+	}
+
+	/**
+	 * Release a removed route's next hop index. The index keeps referring to
+	 * the removed route, so a lookup that read it just before the removal
+	 * still gets that route rather than another.
+	 */
+	private void releaseIndex(int index)
+	{ this.released++; }
+
+	/**
+	 * @return true if the table should be replaced by a new copy, because
+	 *         many blocks and indexes were released or none are left
+	 */
+	boolean needsRebuild()
+	{
+		return this.released >= REBUILD_THRESHOLD || this.nextIndex > MAX_INDEX
+				|| this.blocks >= MAX_INDEX;
+	}
+}
@@ -0,0 +1,241 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.RIPv2Entry;
+
+/**
+ * Forwarding information base for a router. Routes are stored in a multibit
+ * trie with a stride of 8 bits, so a longest prefix match lookup touches at
+ * most four trie nodes regardless of the number of routes installed.
+ * <p>
+ * Lookups read an immutable snapshot of the trie through a single volatile
+ * reference and never lock. Inserts and removals are applied to a private
+ * copy of the nodes they touch and become visible to lookups together when
+ * {@link #publish()} is called.
+ */
+public class ForwardingTable
+{
+	/** Number of address bits consumed at each level of the trie */
+	private static final int STRIDE = 8;
+
+	/** Number of slots in each trie node */
+	private static final int NODE_SIZE = 1 << STRIDE;
+
+	/** Root of the snapshot used for lookups */
+	private volatile Node root;
+
+	/** Root of the trie that pending changes are applied to */
+	private Node working;
+
+	/** Generation of the pending changes; nodes from an older generation
+	 *  may be part of a published snapshot and are copied before changes */
+	private int generation;
+
+	/**
+	 * Initialize an empty forwarding table.
+	 */
+	public ForwardingTable()
+	{
+		this.generation = 1;
+		this.root = new Node(0);
+		this.working = this.root;
+	}
+
+	/**
+	 * Make all pending inserts and removals visible to lookups at once.
+	 */
+	public synchronized void publish()
+	{
+		if (this.working == this.root)
+		{ return; }
+		this.root = this.working;
+		this.generation++;
+	}
+
+	/**
+	 * Find the route with the longest prefix that matches a given IP address.
+	 * @param ip IP address
+	 * @return the matching route, null if none exists
+	 */
+	public RIPv2Entry lookup(int ip)
+	{
+		RIPv2Entry bestMatch = null;
+		Node node = this.root;
+		for (int shift = 32 - STRIDE; node != null && shift >= 0; shift -= STRIDE)
+		{
+			int slot = (ip >>> shift) & (NODE_SIZE - 1);
+			RIPv2Entry route = node.routes[slot];
+			if (route != null)
+			{ bestMatch = route; }
+			node = node.children[slot];
+		}
+		return bestMatch;
+	}
+
+	/**
+	 * Install a route, replacing any route for the same prefix. The route is
+	 * not used for lookups until the next call to {@link #publish()}.
+	 * @param entry the route; its address and subnet mask define the prefix
+	 */
+	public synchronized void insert(RIPv2Entry entry)
+	{
+		int mask = entry.getSubnetMask();
+		int prefix = entry.getAddress() & mask;
+		int length = Integer.bitCount(mask);
+		int level = levelOf(length);
+
+		Node node = this.writable(this.working);
+		this.working = node;
+		for (int i = 0; i < level; i++)
+		{
+			int slot = slotOf(prefix, i);
+			Node child = node.children[slot];
+			if (null == child)
+			{
+				child = new Node(this.generation);
+				node.size++;
+			}
+			else
+			{ child = this.writable(child); }
+			node.children[slot] = child;
+			node = child;
+		}
+
+		int depth = length - level * STRIDE;
+		int bits = slotOf(prefix, level) >>> (STRIDE - depth);
+		int index = (1 << depth) | bits;
+		if (null == node.prefixes[index])
+		{ node.size++; }
+		node.prefixes[index] = entry;
+		node.expand(bits << (STRIDE - depth), 1 << (STRIDE - depth));
+	}
+
+	/**
+	 * Remove the route for a prefix. The route remains in use for lookups
+	 * until the next call to {@link #publish()}.
+	 * @param address destination address of the route
+	 * @param mask subnet mask of the route
+	 * @return true if a route was found and removed, otherwise false
+	 */
+	public synchronized boolean remove(int address, int mask)
+	{
+		int prefix = address & mask;
+		int length = Integer.bitCount(mask);
+		Node node = this.remove(this.working, 0, prefix, length);
+		if (null == node)
+		{ return false; }
+		this.working = node;
+		return true;
+	}
+
+	/**
+	 * @return a writable copy of the node with the route removed, or null if
+	 *         the node does not contain the route
+	 */
+	private Node remove(Node node, int level, int prefix, int length)
+	{
+		if (level < levelOf(length))
+		{
+			int slot = slotOf(prefix, level);
+			Node child = node.children[slot];
+			if (null == child)
+			{ return null; }
+			child = this.remove(child, level + 1, prefix, length);
+			if (null == child)
+			{ return null; }
+			node = this.writable(node);
+			if (0 == child.size)
+			{
+				node.children[slot] = null;
+				node.size--;
+			}
+			else
+			{ node.children[slot] = child; }
+			return node;
+		}
+
+		int depth = length - level * STRIDE;
+		int bits = slotOf(prefix, level) >>> (STRIDE - depth);
+		int index = (1 << depth) | bits;
+		if (null == node.prefixes[index])
+		{ return null; }
+		node = this.writable(node);
+		node.prefixes[index] = null;
+		node.size--;
+		node.expand(bits << (STRIDE - depth), 1 << (STRIDE - depth));
+		return node;
+	}
+
+	/**
+	 * @return the node itself if it belongs to the pending generation,
+	 *         otherwise a copy that does
+	 */
+	private Node writable(Node node)
+	{
+		if (node.generation == this.generation)
+		{ return node; }
+		return new Node(node, this.generation);
+	}
+
+	/**
+	 * @return the trie level that stores prefixes of the given length
+	 */
+	private static int levelOf(int length)
+	{ return (0 == length) ? 0 : (length - 1) / STRIDE; }
+
+	/**
+	 * @return the octet of an address used to index the given trie level
+	 */
+	private static int slotOf(int address, int level)
+	{ return (address >>> (32 - STRIDE * (level + 1))) & (NODE_SIZE - 1); }
+
+	/**
+	 * A node in the trie. Prefixes whose length ends within this node's
+	 * octet are kept in {@code prefixes}, indexed by (1 << depth) | bits, and
+	 * expanded into {@code routes} so each slot holds its longest match.
+	 * Nodes are never modified once they are part of a published snapshot.
+	 */
+	private static class Node
+	{
+		RIPv2Entry[] routes;
+		RIPv2Entry[] prefixes;
+		Node[] children;
+
+		/** Number of prefixes and children stored in the node */
+		int size;
+
+		/** Generation of changes the node was created for */
+		final int generation;
+
+		Node(int generation)
+		{
+			this.routes = new RIPv2Entry[NODE_SIZE];
+			this.prefixes = new RIPv2Entry[NODE_SIZE * 2];
+			this.children = new Node[NODE_SIZE];
+			this.size = 0;
+			this.generation = generation;
+		}
+
+		Node(Node other, int generation)
+		{
+			this.routes = other.routes.clone();
+			this.prefixes = other.prefixes.clone();
+			this.children = other.children.clone();
+			this.size = other.size;
+			this.generation = generation;
+		}
+
+		/**
+		 * Recompute the longest matching prefix for a range of slots.
+		 */
+		void expand(int first, int count)
+		{
+			for (int slot = first; slot < first + count; slot++)
+			{
+				RIPv2Entry best = null;
+				for (int depth = STRIDE; depth >= 0 && null == best; depth--)
+				{ best = this.prefixes[(1 << depth) | (slot >>> (STRIDE - depth))]; }
+				this.routes[slot] = best;
+			}
+		}
+	}
+}
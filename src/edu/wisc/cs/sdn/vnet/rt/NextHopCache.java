@@ -0,0 +1,170 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A bounded cache that maps destination IP addresses directly to the
+ * interface and Ethernet addresses used to forward packets to them. Entries
+ * are tagged with the generation in which they were resolved; invalidating
+ * the cache starts a new generation, which makes every older entry a miss.
+ */
+public class NextHopCache
+{
+	/** Default number of slots in the cache */
+	public static final int DEFAULT_SIZE = 4096;
+
+	/** Slots in the cache; a destination can only be cached in one slot */
+	private final Entry[] slots;
+
+	/** Mask applied to a destination's hash to select its slot */
+	private final int mask;
+
+	/** Current generation; entries from other generations are stale */
+	private final AtomicInteger generation;
+
+	/** Number of lookups answered from the cache */
+	private final LongAdder hits;
+
+	/** Number of lookups that found no usable entry */
+	private final LongAdder misses;
+
+	/**
+	 * Initializes an empty cache with the default number of slots.
+	 */
+	public NextHopCache()
+	{ this(DEFAULT_SIZE); }
+
+	/**
+	 * Initializes an empty cache.
+	 * @param size number of slots in the cache; rounded up to a power of two
+	 */
+	public NextHopCache(int size)
+	{
+		int slots = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.slots = new Entry[slots];
+		this.mask = slots - 1;
+		this.generation = new AtomicInteger();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Find the cached next hop for a destination.
+	 * @param destination destination IP address
+	 * @return the cached next hop; null if none exists in the current
+	 *         generation
+	 */
+	public Entry lookup(int destination)
+	{
+		Entry entry = this.slots[slotOf(destination) & this.mask];
+		if (entry != null && entry.destination == destination
+				&& entry.generation == this.generation.get())
+		{
+			this.hits.increment();
+			return entry;
+		}
+		this.misses.increment();
+		return null;
+	}
+
+	/**
+	 * Cache the next hop for a destination. The generation should be read
+	 * with {@link #getGeneration()} before the next hop is resolved, so a
+	 * next hop resolved from tables that have since changed is never used.
+	 * @param generation generation in which the next hop was resolved
+	 * @param destination destination IP address
+	 * @param outIface interface out which to send packets
+	 * @param sourceMac source MAC address for packets sent out the interface
+	 * @param destinationMac MAC address of the next hop
+	 * @return the cached next hop
+	 */
+	public Entry insert(int generation, int destination, Iface outIface,
+			long sourceMac, long destinationMac)
+	{
+		Entry entry = new Entry(generation, destination, outIface, sourceMac,
+				destinationMac);
+		this.slots[slotOf(destination) & this.mask] = entry;
+		return entry;
+	}
+
+	/**
+	 * Discard all cached next hops; called whenever routes or ARP mappings
+	 * change.
+	 */
+	public void invalidate()
+	{ this.generation.incrementAndGet(); }
+
+	/**
+	 * @return the current generation
+	 */
+	public int getGeneration()
+	{ return this.generation.get(); }
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups that found no usable entry
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	private static int slotOf(int destination)
+	{ return destination ^ (destination >>> 16); }
+
+	public String toString()
+	{ return String.format("hits=%d misses=%d", this.getHits(), this.getMisses()); }
+
+	/**
+	 * A cached next hop. Entries are immutable.
+	 */
+	public static class Entry
+	{
+		private final int generation;
+		private final int destination;
+		private final Iface outIface;
+		private final long sourceMac;
+		private final long destinationMac;
+
+		private Entry(int generation, int destination, Iface outIface,
+				long sourceMac, long destinationMac)
+		{
+			this.generation = generation;
+			this.destination = destination;
+			this.outIface = outIface;
+			this.sourceMac = sourceMac;
+			this.destinationMac = destinationMac;
+		}
+
+		/**
+		 * @return destination IP address
+		 */
+		public int getDestination()
+		{ return this.destination; }
+
+		/**
+		 * @return interface out which to send packets to the destination
+		 */
+		public Iface getOutIface()
+		{ return this.outIface; }
+
+		/**
+		 * @return source MAC address for packets sent to the destination, in
+		 *         the lower 48 bits of a long
+		 */
+		public long getSourceMac()
+		{ return this.sourceMac; }
+
+		/**
+		 * @return MAC address of the next hop, in the lower 48 bits of a long
+		 */
+		public long getDestinationMac()
+		{ return this.destinationMac; }
+	}
+}
@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.RIPv2;
+import net.floodlightcontroller.packet.RIPv2Entry;
+
+/**
+ * Serialized RIP responses for each of a router's interfaces. The frames are
+ * rebuilt only when the RIP table changes, so periodic updates and replies
+ * to requests send cached bytes instead of serializing the table. Each
+ * response is split into messages of at most {@link RIPv2#MAX_ENTRIES}
+ * routes.
+ */
+class RIPv2ResponseCache
+{
+	/** Offset of the destination IP address in a response frame */
+	private static final int IP_DESTINATION_OFFSET = 14 + 16;
+
+	/** Offset of the IP header checksum in a response frame */
+	private static final int IP_CHECKSUM_OFFSET = 14 + 10;
+
+	/** Offset of the UDP checksum in a response frame */
+	private static final int UDP_CHECKSUM_OFFSET = 14 + 20 + 6;
+
+	private final Router router;
+
+	private final RIPv2Sender sender;
+
+	/** RIP table version the frames were built from; -1 if none were built */
+	private long version;
+
+	/** Multicast response frames indexed by interface index, then message */
+	private byte[][][] frames;
+
+	RIPv2ResponseCache(Router router, RIPv2Sender sender)
+	{
+		this.router = router;
+		this.sender = sender;
+		this.version = -1;
+		this.frames = new byte[0][][];
+	}
+
+	/**
+	 * Get the response frames multicast out an interface. The frames must
+	 * not be modified.
+	 * @param iface interface the response is sent out
+	 * @return one frame per message, addressed to the RIP multicast group
+	 */
+	synchronized byte[][] getFrames(Iface iface)
+	{
+		long version = this.router.getRIPVersion();
+		if (version != this.version)
+		{ this.rebuild(version, this.router.getRIPRoutes()); }
+		return (iface.getIndex() < this.frames.length) ? this.frames[iface.getIndex()] : null;
+	}
+
+	/**
+	 * Get the response frames addressed to a single neighbor.
+	 * @param iface interface the response is sent out
+	 * @param dstMac MAC address of the neighbor
+	 * @param dstIp IP address of the neighbor
+	 * @return new frames, one per message, that may be modified
+	 */
+	byte[][] getFrames(Iface iface, long dstMac, int dstIp)
+	{
+		byte[][] multicast = this.getFrames(iface);
+		if (null == multicast)
+		{ return null; }
+		byte[][] frames = new byte[multicast.length][];
+		for (int i = 0; i < frames.length; i++)
+		{ frames[i] = readdress(multicast[i].clone(), dstMac, dstIp); }
+		return frames;
+	}
+
+	/**
+	 * Readdress a response frame, patching the checksums that cover the
+	 * destination address.
+	 */
+	private static byte[] readdress(byte[] frame, long dstMac, int dstIp)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(frame);
+		MACAddress.put(bb, 0, dstMac);
+		int oldIp = bb.getInt(IP_DESTINATION_OFFSET);
+		bb.putInt(IP_DESTINATION_OFFSET, dstIp);
+		bb.putShort(IP_CHECKSUM_OFFSET, IPv4.updateChecksum(
+				bb.getShort(IP_CHECKSUM_OFFSET), oldIp, dstIp));
+		short udpChecksum = bb.getShort(UDP_CHECKSUM_OFFSET);
+		if (udpChecksum != 0)
+		{
+			bb.putShort(UDP_CHECKSUM_OFFSET,
+					IPv4.updateChecksum(udpChecksum, oldIp, dstIp));
+		}
+		return frame;
+	}
+
+	private void rebuild(long version, Collection<RIPv2Entry> routes)
+	{
+		RouteView view = new RouteView(routes);
+		Collection<Iface> ifaces = this.router.getInterfaces().values();
+		int size = 0;
+		for (Iface iface : ifaces)
+		{ size = Math.max(size, iface.getIndex() + 1); }
+
+		byte[][][] frames = new byte[size][][];
+		for (Iface iface : ifaces)
+		{
+			List<RIPv2Entry> entries = view.forInterface(iface);
+			int messages = Math.max(1,
+					(entries.size() + RIPv2.MAX_ENTRIES - 1) / RIPv2.MAX_ENTRIES);
+			byte[][] ifaceFrames = new byte[messages][];
+			for (int i = 0; i < messages; i++)
+			{
+				RIPv2 response = new RIPv2();
+				response.setEntries(entries.subList(i * RIPv2.MAX_ENTRIES,
+						Math.min(entries.size(), (i + 1) * RIPv2.MAX_ENTRIES)));
+				response.setCommand(RIPv2.COMMAND_RESPONSE);
+				ifaceFrames[i] =
+						this.sender.encapsulateRIPv2Packet(response, iface).serialize();
+			}
+			frames[iface.getIndex()] = ifaceFrames;
+		}
+		this.frames = frames;
+		this.version = version;
+	}
+}
@@ -1,9 +1,11 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Iface;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -12,27 +14,112 @@ import net.floodlightcontroller.packet.RIPv2Entry;
 import net.floodlightcontroller.packet.UDP;
 
 /**
- * Sends RIP requsts on start and sends rip responses every 10 seconds
+ * Sends RIP requsts on start and sends rip responses every 10 seconds.
+ * Responses are split into messages of at most 25 routes; the messages of
+ * a periodic update are spread evenly over the update interval.
+ * Changed routes are also sent as triggered updates: changes are collected
+ * for a short delay and flooded together, carrying only the changed routes.
+ * Updates are timed on the timer wheel and sent on the router's executor,
+ * so the sender has no thread of its own.
  */
-public class RIPv2Sender implements Runnable {
+public class RIPv2Sender {
 
+	/** Default delay (in milliseconds) over which changes are collected */
+	public static final long DEFAULT_TRIGGER_DELAY = 200;
+
+	/** Metric that marks a route as unreachable */
+	public static final int INFINITY = 16;
+
+	/** Interval (in milliseconds) between periodic updates */
+	public static final long UPDATE_INTERVAL = 10000;
 
 	private Router router;
    /** Table to store rip entries */
 	private Map<Integer, RIPv2Entry> ripTable;
-	
-	private Thread responseThread;
 
-	
+	/** Timers for sending periodic and triggered updates */
+	private Clock clock;
+
+	/** Runs the updates once their timers fire */
+	private Executor executor;
+
+	/** Whether the sender has been stopped */
+	private volatile boolean stopped;
+
+	/** Number of messages in the current periodic update; only used by
+	 *  the periodic update's tasks, which run one after another */
+	private int periodicMessages;
+
+	/** Delay (in milliseconds) over which changes are collected */
+	private long triggerDelay;
+
+	/** Changed routes not yet sent, by destination; guarded by this */
+	private Map<Integer, RIPv2Entry> changed;
+
+	/** Whether a triggered update is scheduled; guarded by this */
+	private boolean triggerPending;
+
+	/** Whether updates are being sent; changes recorded before the sender
+	 *  starts are sent once it starts; guarded by this */
+	private boolean started;
+
+	/** Serialized responses sent for periodic updates and requests */
+	private RIPv2ResponseCache responses;
+
 	public RIPv2Sender(Router router, Map<Integer, RIPv2Entry> someTable){
+		this(router, someTable, Clock.get(), DEFAULT_TRIGGER_DELAY);
+	}
+
+	public RIPv2Sender(Router router, Map<Integer, RIPv2Entry> someTable, Clock clock, long triggerDelay){
 		this.router = router;
 		this.ripTable = someTable;
+		this.clock = clock;
+		this.executor = router.getExecutor();
+		this.triggerDelay = triggerDelay;
+		this.changed = new LinkedHashMap<>();
+		this.triggerPending = false;
+		this.responses = new RIPv2ResponseCache(router, this);
+	}
+
+	/**
+	 * Requests routes from all neighbors and starts sending periodic and
+	 * triggered updates; called once the router's connected routes are
+	 * installed, so the first updates carry them
+	 */
+	public void start(){
+		boolean trigger;
+		synchronized(this){
+			started = true;
+			trigger = !changed.isEmpty() && !triggerPending;
+			triggerPending |= trigger;
+		}
 		RIPv2 request = new RIPv2();
 		request.setCommand(RIPv2.COMMAND_REQUEST);
-		
 		floodRIPv2Packet(request);
-		responseThread = new Thread(this);
-		responseThread.start();
+		if(trigger){
+			runLater(this::sendTriggeredUpdate, triggerDelay);
+		}
+		executor.execute(this::startPeriodicUpdate);
+	}
+
+	/**
+	 * Stops sending periodic and triggered updates
+	 */
+	public void stop(){
+		stopped = true;
+	}
+
+	/**
+	 * Runs a task on the executor after a delay, unless the sender is stopped
+	 * @param task
+	 * @param delay
+	 */
+	private void runLater(Runnable task, long delay){
+		clock.schedule(() -> {
+			if(!stopped){
+				executor.execute(task);
+			}
+		}, delay);
 	}
     /**
 	 * Sends a RIP packet out all interfaces
@@ -44,6 +131,40 @@ public class RIPv2Sender implements Runnable {
 			//System.out.println("RIPv2Sender.java(): floodRIPv2Packet() sending rip packet out interface: " + i.getName());
 			router.sendPacket(etherPacket, i);
 		}
+		router.flush();
+	}
+	/**
+	 * Sends a RIP response out all interfaces, using split horizon with
+	 * poisoned reverse for routes learned on each interface
+	 * @param routes
+	 */
+	public void floodRIPv2Response(RouteView routes){
+		for(Iface i : router.getInterfaces().values()) {
+			List<RIPv2Entry> entries = routes.forInterface(i);
+			for(int first = 0; first < entries.size(); first += RIPv2.MAX_ENTRIES){
+				RIPv2 response = new RIPv2();
+				response.setEntries(entries.subList(first, Math.min(entries.size(), first + RIPv2.MAX_ENTRIES)));
+				response.setCommand(RIPv2.COMMAND_RESPONSE);
+				router.sendPacket(encapsulateRIPv2Packet(response, i), i);
+			}
+		}
+		router.flush();
+	}
+
+	/**
+	 * Sends the cached response for an interface to a single neighbor
+	 * @param i
+	 * @param dstMac
+	 * @param dstIP
+	 */
+	public void sendCachedResponse(Iface i, long dstMac, int dstIP){
+		byte[][] frames = responses.getFrames(i, dstMac, dstIP);
+		if(frames != null){
+			for(byte[] frame : frames){
+				router.sendFrame(frame, i);
+			}
+			router.flush();
+		}
 	}
 	public Ethernet encapsulateRIPv2Packet(RIPv2 ripPacket, Iface i){
 		UDP udpPacket = new UDP();
@@ -58,29 +179,100 @@ public class RIPv2Sender implements Runnable {
 		ipPacket.setTtl((byte) 2); 
 		Ethernet etherPacket = new Ethernet();
 		etherPacket.setPayload(ipPacket);
-		etherPacket.setSourceMACAddress(i.getMacAddress().toBytes());
+		etherPacket.setSourceMACAddress(i.getMacLong());
 		etherPacket.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
 		etherPacket.setEtherType(Ethernet.TYPE_IPv4);
 		return etherPacket;
 	}
+	/**
+	 * Records a new or changed route to be sent in the next triggered update
+	 * @param entry
+	 */
+	public void routeChanged(RIPv2Entry entry){
+		synchronized(this){
+			changed.put(entry.getAddress(), entry);
+			if(triggerPending || !started){
+				return;
+			}
+			triggerPending = true;
+		}
+		runLater(this::sendTriggeredUpdate, triggerDelay);
+	}
+
+	/**
+	 * Records a removed route to be sent as unreachable in the next triggered update
+	 * @param entry
+	 */
+	public void routeRemoved(RIPv2Entry entry){
+		routeChanged(new RIPv2Entry(entry.getAddress(), entry.getSubnetMask(), INFINITY,
+				entry.getNextHopAddress(), entry.getOutIface(), entry.isHost(), entry.getLastUpdated()));
+	}
+
+	/**
+	 * Floods the routes changed since the last triggered update. Changes made
+	 * while the update is sent wait for the next delay, so at most one
+	 * triggered update is sent per delay
+	 */
+	private void sendTriggeredUpdate(){
+		RouteView routes;
+		synchronized(this){
+			routes = new RouteView(changed.values());
+			changed.clear();
+		}
+		if(routes.size() > 0){
+			floodRIPv2Response(routes);
+		}
+		synchronized(this){
+			if(changed.isEmpty()){
+				triggerPending = false;
+				return;
+			}
+		}
+		runLater(this::sendTriggeredUpdate, triggerDelay);
+	}
+
 	/*
-	 * Sends an unsolicted RIPv2 response every 10 seconds
+	 * Sends an unsolicted RIPv2 response every 10 seconds, spreading its
+	 * messages evenly over the interval: takes the frames for the interval
+	 * and sends the first message after its share of the interval
 	 */
-	@Override
-	public void run(){
-		// TODO Auto-generated method stub
-		while(true){
-			try{
-				// sleep for 10 seconds
-				responseThread.sleep(10000);
-			} catch (InterruptedException e){
-				break;
+	private void startPeriodicUpdate(){
+		// only the spacing is fixed for this interval; each message is taken
+		// from the table as it is when the message is sent
+		periodicMessages = 1;
+		for(Iface i : router.getInterfaces().values()) {
+			byte[][] ifaceFrames = responses.getFrames(i);
+			if(ifaceFrames != null){
+				periodicMessages = Math.max(periodicMessages, ifaceFrames.length);
 			}
-			RIPv2 response = new RIPv2();
-			List<RIPv2Entry> entries = new ArrayList<>(ripTable.values());
-			response.setEntries(entries);
-			response.setCommand(RIPv2.COMMAND_RESPONSE);
-			floodRIPv2Packet(response);
+		}
+		runLater(() -> sendPeriodicMessage(0), UPDATE_INTERVAL / periodicMessages);
+	}
+
+	/**
+	 * Sends one message of the current table out every interface, then
+	 * schedules the next message or the next update; the last message also
+	 * sends any messages the table has grown by since the update started
+	 * @param m
+	 */
+	private void sendPeriodicMessage(int m){
+		boolean last = m + 1 >= periodicMessages;
+		for(Iface i : router.getInterfaces().values()) {
+			byte[][] ifaceFrames = responses.getFrames(i);
+			if(ifaceFrames == null){
+				continue;
+			}
+			int end = last ? ifaceFrames.length : Math.min(m + 1, ifaceFrames.length);
+			for(int f = m; f < end; f++){
+				router.sendFrame(ifaceFrames[f], i);
+			}
+		}
+		router.flush();
+		if(!last){
+			runLater(() -> sendPeriodicMessage(m + 1), UPDATE_INTERVAL / periodicMessages);
+		}
+		else {
+			startPeriodicUpdate();
 		}
 	}
 	
@@ -1,87 +1,99 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
+import edu.wisc.cs.sdn.vnet.Clock;
+import edu.wisc.cs.sdn.vnet.Log;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.RIPv2Entry;
 
 /**
- * Deletes RIPv2 entries that have not received an update in 30 seconds
+ * Deletes RIPv2 entries that have not received an update in 30 seconds.
+ * Routes are aged by timers on the clock, so only routes that are due
+ * are examined.
  */
-public class RIPv2Updater implements Runnable {
+public class RIPv2Updater {
     
-    private Map<Integer, RIPv2Entry> ripTable;
+    private Router router;
 
-    // private Thread timeoutThread;
+    private Map<Integer, RIPv2Entry> ripTable;
 
     private static final long TIMEOUT = 30000;
 
+    /** Delay (in milliseconds) before an expiry timer that found the lock
+     *  held tries again */
+    private static final long RETRY = 10;
+
+    private static final Log log = Log.get("rip");
+
     private ReentrantLock lock;
 
-    public RIPv2Updater(Map<Integer, RIPv2Entry> ripTable, ReentrantLock lock){
+    private Clock clock;
+
+    /** Destinations with an armed timer; guarded by the lock */
+    private Set<Integer> armed;
+
+    public RIPv2Updater(Router router, Map<Integer, RIPv2Entry> ripTable, ReentrantLock lock, Clock clock){
+        this.router = router;
         this.ripTable = ripTable;
-        System.out.println("RIPv2Updater Created updater");
+        log.debug("created updater");
 
-        //this.timeoutThread = new Thread();
         this.lock = lock;
-        //this.timeoutThread.start();
+        this.clock = clock;
+        this.armed = new HashSet<>();
     }
 
-    public int lookupSubnet(int ip){
-		for(Map.Entry<Integer, RIPv2Entry> entry : ripTable.entrySet()){
-			if((entry.getValue().getSubnetMask() & ip) == entry.getKey()){
-				//System.out.println("Router.java: lookupSubnet() found subnet " + 
-				//IPv4.fromIPv4Address(entry.getValue().getSubnetMask() & ip) + " for ip " + IPv4.fromIPv4Address(ip));
-				return ip & entry.getValue().getSubnetMask();
-			}
-		}
-		//System.out.println("Router.java: lookupSubnet(): entry failed");
-		return -1;
-	}
-
-    public void printRIPTable(){
-		for(Map.Entry<Integer, RIPv2Entry> entry : ripTable.entrySet()){
-			System.out.println("dest subnet: " + IPv4.fromIPv4Address(entry.getKey()) + " cost= " + entry.getValue().getMetric() + " next hop IP: " + IPv4.fromIPv4Address(entry.getValue().getNextHopAddress()) + 
-			" is host= " + entry.getValue().isHost() + " timestamp= " + entry.getValue().getLastUpdated());
-		}
-	}
-  
-    @Override
-    public void run() {
-        // TODO Auto-generated method stub
-        while(true) {
-            lock.lock();
+    /**
+     * Starts aging a route; must be called with the lock held whenever a
+     * route is installed. Each destination has at most one timer, which
+     * re-arms itself while the route keeps being refreshed.
+     * @param entry the installed route
+     */
+    void track(RIPv2Entry entry) {
+        if (entry.isHost() || !armed.add(entry.getAddress())) {
+            return;
+        }
+        clock.schedule(new Expiry(entry.getAddress()), TIMEOUT);
+    }
+
+    /**
+     * Removes the route to a destination if it has not been updated within
+     * the timeout, otherwise waits for the rest of the timeout. Timers share
+     * the clock's thread, so a timer that finds the lock held tries again
+     * shortly instead of waiting for it.
+     */
+    private class Expiry implements Runnable {
+        private final int dest;
+
+        Expiry(int dest) {
+            this.dest = dest;
+        }
+
+        @Override
+        public void run() {
+            if (!lock.tryLock()) {
+                clock.schedule(this, RETRY);
+                return;
+            }
             try {
-                //System.out.println("RIPv2Updater.java: run() Successfully acquired lock");
-                Set<Integer> expiredSubnets = new HashSet<>();
-                //find all entries which are expired and delete them
-                for (Map.Entry<Integer, RIPv2Entry> entry : ripTable.entrySet()) {
-                    if (System.currentTimeMillis() - entry.getValue().getLastUpdated() >= TIMEOUT && entry.getValue().isHost() == false){
-                        int deletedSubnet = entry.getKey();
-                        expiredSubnets.add(deletedSubnet);
-                        ripTable.remove(deletedSubnet);
-                        System.out.println("RIPv2Updater.java: run(): REMOVED ENTRY: " + IPv4.fromIPv4Address(deletedSubnet) + " OUTPUTTING ROUTE TABLE");
-                        System.out.println("-----------------------------------------------------------------------------------------------------------");
-                        printRIPTable();
-                        System.out.println("------------------------------------------------------------------------------------------------------------");
-                        
-                    }
+                RIPv2Entry entry = ripTable.get(dest);
+                if (entry == null || entry.isHost()) {
+                    armed.remove(dest);
+                    return;
                 }
-                /*
-                // deleting all entries whose route to next hop was deleted in the previous step
-                for(Map.Entry<Integer, RIPv2Entry> entry : ripTable.entrySet()){
-                    int nextHop = entry.getValue().getNextHopAddress();
-                    int subnetNumber = lookupSubnet(nextHop);
-                    if(expiredSubnets.contains(subnetNumber)){
-                        ripTable.remove(subnetNumber);
-                        System.out.println("RIPv2Updater.java: run() removed dest: " + IPv4.fromIPv4Address(subnetNumber) + " as a result of the previous removal");
-                    }
+                long age = clock.currentTimeMillis() - entry.getLastUpdated();
+                if (age < TIMEOUT) {
+                    clock.schedule(this, TIMEOUT - age);
+                    return;
                 }
-                */
+                armed.remove(dest);
+                router.removeRoute(entry);
+                router.publishRoutes();
+                log.info("expired route to " + IPv4.fromIPv4Address(dest));
+                router.logRIPTable();
             } catch (Exception e){
                 e.printStackTrace();
             } finally {
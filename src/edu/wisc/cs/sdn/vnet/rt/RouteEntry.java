@@ -1,6 +1,7 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
 import net.floodlightcontroller.packet.IPv4;
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
@@ -46,7 +47,7 @@ public class RouteEntry
 		this.networkAddress = destinationAddress & maskAddress;
 		this.iface = iface;
 		this.cost = linkCost;
-		lastUpdated = System.currentTimeMillis();
+		lastUpdated = Clock.now();
 	}
 	
 	/**
@@ -22,11 +22,50 @@ public class RouteTable
 	/** Entries in the route table */
 	private List<RouteEntry> entries; 
 
+	/** Copy of the entries used for lookups; replaced, never modified, 
+	 *  whenever an entry is inserted or removed */
+	private volatile RouteEntry[] snapshot;
+
+	/** DIR-24-8 lookup engine; null if lookups scan the list of entries */
+	private volatile DirectLookupTable directTable;
+
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ 
+		this.entries = new LinkedList<RouteEntry>(); 
+		this.snapshot = new RouteEntry[0];
+	}
+
+	/**
+	 * Answer lookups from a DIR-24-8 lookup engine instead of scanning the
+	 * list of entries. The engine is built from the current entries and kept
+	 * up to date as entries are inserted, removed and updated.
+	 */
+	public void enableDirectLookup()
+	{
+		synchronized(this.entries)
+		{
+			if (this.directTable != null)
+			{ return; }
+			this.rebuildDirectTable();
+		}
+	}
+
+	/**
+	 * Replace the lookup engine with a new copy built from the current
+	 * entries, so released blocks and next hop indexes can be used again;
+	 * lookups keep using the old copy until the new one is published.
+	 * Must be called with the entries locked.
+	 */
+	private void rebuildDirectTable()
+	{
+		DirectLookupTable table = new DirectLookupTable();
+		for (RouteEntry entry : this.entries)
+		{ table.insert(entry); }
+		this.directTable = table;
+	}
 
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,26 +74,27 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
+		DirectLookupTable table = this.directTable;
+		if (table != null)
+		{ return table.lookup(ip); }
 
-			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
-			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				if (maskedDst == entrySubnet) {
-					if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
-				}
+		/*****************************************************************/
+		/* TODO: Find the route entry with the longest prefix match      */
+
+		RouteEntry bestMatch = null;
+		for (RouteEntry entry : this.snapshot)
+		{
+			int maskedDst = ip & entry.getMaskAddress();
+			int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
+			if (maskedDst == entrySubnet) {
+				if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
+				{ bestMatch = entry; }
 			}
+		}
 
-			return bestMatch;
+		return bestMatch;
 
-			/*****************************************************************/
-		}
+		/*****************************************************************/
 	}
 
 	public List<RouteEntry> getEntries()
@@ -165,6 +205,14 @@ public class RouteTable
 		synchronized(this.entries)
 		{ 
 			this.entries.add(entry);
+			this.snapshot = this.entries.toArray(new RouteEntry[0]);
+			if (this.directTable != null)
+			{
+				if (this.directTable.needsRebuild())
+				{ this.rebuildDirectTable(); }
+				else
+				{ this.directTable.insert(entry); }
+			}
 		}
 	}
 
@@ -181,6 +229,13 @@ public class RouteTable
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
 			this.entries.remove(entry);
+			this.snapshot = this.entries.toArray(new RouteEntry[0]);
+			if (this.directTable != null)
+			{
+				this.directTable.remove(entry, this.entries);
+				if (this.directTable.needsRebuild())
+				{ this.rebuildDirectTable(); }
+			}
 		}
 		return true;
 	}
@@ -199,6 +254,8 @@ public class RouteTable
 		{
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
+			// The lookup engine refers to the entry itself, so it sees the
+			// new gateway and interface without being rebuilt
 			entry.setGatewayAddress(gwIp);
 			entry.setInterface(iface);
 		}
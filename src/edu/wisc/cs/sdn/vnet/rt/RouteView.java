@@ -0,0 +1,73 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.RIPv2Entry;
+
+/**
+ * A snapshot of RIP routes shared by the responses sent out each interface.
+ * Responses use split horizon with poisoned reverse: a route learned from a
+ * neighbor is advertised back out the interface it was learned on with an
+ * infinite metric.
+ */
+class RouteView
+{
+	/** Routes in the snapshot */
+	private final RIPv2Entry[] routes;
+
+	/** Unreachable copy of each learned route; null for connected routes */
+	private final RIPv2Entry[] poisoned;
+
+	/**
+	 * Take a snapshot of a set of routes.
+	 * @param routes the routes to advertise
+	 */
+	RouteView(Collection<RIPv2Entry> routes)
+	{
+		this.routes = routes.toArray(new RIPv2Entry[0]);
+		this.poisoned = new RIPv2Entry[this.routes.length];
+		for (int i = 0; i < this.routes.length; i++)
+		{
+			RIPv2Entry route = this.routes[i];
+			if (route.getNextHopAddress() != 0)
+			{
+				this.poisoned[i] = new RIPv2Entry(route.getAddress(),
+						route.getSubnetMask(), RIPv2Sender.INFINITY,
+						route.getNextHopAddress(), route.getOutIface(),
+						route.isHost(), route.getLastUpdated());
+			}
+		}
+	}
+
+	/**
+	 * @return number of routes in the snapshot
+	 */
+	int size()
+	{ return this.routes.length; }
+
+	/**
+	 * Get the routes to advertise out an interface. The list is a view of the
+	 * snapshot; no routes are copied.
+	 * @param iface interface the routes are advertised out
+	 * @return the routes, with routes learned on the interface poisoned
+	 */
+	List<RIPv2Entry> forInterface(final Iface iface)
+	{
+		return new AbstractList<RIPv2Entry>()
+		{
+			public RIPv2Entry get(int index)
+			{
+				RIPv2Entry route = routes[index];
+				if (poisoned[index] != null && route.getOutIface() == iface)
+				{ return poisoned[index]; }
+				return route;
+			}
+
+			public int size()
+			{ return routes.length; }
+		};
+	}
+}
@@ -2,16 +2,19 @@ package edu.wisc.cs.sdn.vnet.rt;
 
 
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -25,17 +28,29 @@ import net.floodlightcontroller.packet.UDP;
  */
 public class Router extends Device
 {	
+	/** Length of an Ethernet header without a VLAN tag */
+	private static final int ETHER_HEADER_LENGTH = 14;
+
+	/** Length of an IPv4 header without options */
+	private static final int IPV4_HEADER_LENGTH = 20;
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
 	/** ARP cache for the router */
 	private ArpCache arpCache;
+
+	/** Forwarding table built from the RIP routes */
+	private ForwardingTable forwardingTable;
+
+	/** Next hops of recently forwarded-to destinations */
+	private NextHopCache nextHopCache;
     /** Data Structure for RIP-based route table */
 	private Map<Integer, RIPv2Entry> ripTable;
     /** Thread to send RIP responses */
 	private RIPv2Sender sender;
 
-	/** Thread to delete rip entries after time has expired*/
+	/** Timers to delete rip entries after time has expired*/
 	private RIPv2Updater updater;
 
 	/** Thread to process RIP responses */
@@ -44,6 +59,21 @@ public class Router extends Device
 
 	ReentrantLock lock;
 
+	/** Minimum time (in milliseconds) between dumps of the RIP table */
+	private static final long TABLE_DUMP_INTERVAL = 1000;
+
+	private static final Log log = Log.get("rip");
+
+	/** Limits how often the RIP table is dumped to the log */
+	private final Log.RateLimit tableDumps = new Log.RateLimit(TABLE_DUMP_INTERVAL);
+
+	/** Number of changes made to the advertised RIP routes */
+	private final AtomicLong ripVersion = new AtomicLong();
+
+	/** Delay (in milliseconds) over which route changes are collected before
+	 *  a triggered update is sent */
+	private long triggerDelay = RIPv2Sender.DEFAULT_TRIGGER_DELAY;
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -53,23 +83,64 @@ public class Router extends Device
 		super(host,logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
-		
+		this.forwardingTable = new ForwardingTable();
+		this.nextHopCache = new NextHopCache();
 	}
 
 	public void start(){
 		this.ripTable = new ConcurrentHashMap<>();
 		this.lock = new ReentrantLock();
+		this.updater = new RIPv2Updater(this, ripTable, lock, Clock.get());
+		// the sender only records the connected routes until it is started
+		this.sender = new RIPv2Sender(this, ripTable, Clock.get(), triggerDelay);
 		// initializing route table with entries of directly connected interfaces
 		for(Iface i : this.getInterfaces().values()) {
 			int subnet = i.getIpAddress() & i.getSubnetMask();
 			//System.out.println("Router.java : Router(): adding subnet " + subnet + "to RIP table");
-			ripTable.put(subnet, new RIPv2Entry(subnet, i.getSubnetMask(), 1, 0, i, true));
+			installRoute(new RIPv2Entry(subnet, i.getSubnetMask(), 1, 0, i, true, Clock.now()));
+		}
+		publishRoutes();
+		sender.start();
+	}
+
+	/**
+	 * Stops sending RIP updates and closes the PCAP dump file
+	 */
+	@Override
+	public void destroy(){
+		if(sender != null){
+			sender.stop();
 		}
-		sender = new RIPv2Sender(this, ripTable);
-		Thread ripUpdater = new Thread(new RIPv2Updater(ripTable, lock));
-		ripUpdater.start();
+		super.destroy();
 	}
 
+	/**
+	 * @param triggerDelay delay (in milliseconds) over which route changes
+	 *        are collected before a triggered update is sent; takes effect
+	 *        when the router is started
+	 */
+	public void setTriggerDelay(long triggerDelay)
+	{ this.triggerDelay = triggerDelay; }
+
+	/**
+	 * @return a number that changes whenever a route is added or removed, or
+	 *         its metric or next hop changes
+	 */
+	long getRIPVersion()
+	{ return this.ripVersion.get(); }
+
+	/**
+	 * @return the routes in the RIP table
+	 */
+	Collection<RIPv2Entry> getRIPRoutes()
+	{ return this.ripTable.values(); }
+
+	/**
+	 * @return cache of next hops used to forward packets
+	 */
+	public NextHopCache getNextHopCache()
+	{ return this.nextHopCache; }
+
 	/**
 	 * @return routing table for the router
 	 */
@@ -108,6 +179,8 @@ public class Router extends Device
 			System.exit(1);
 		}
 
+		this.nextHopCache.invalidate();
+
 		System.out.println("Loaded static ARP cache");
 		System.out.println("----------------------------------");
 		System.out.print(this.arpCache.toString());
@@ -132,8 +205,8 @@ public class Router extends Device
 		ipPacket.setTtl((byte) 2); 
 		Ethernet etherPacket = new Ethernet();
 		etherPacket.setPayload(ipPacket);
-		etherPacket.setSourceMACAddress(srcMac.toBytes());
-		etherPacket.setDestinationMACAddress(dstMac.toBytes());
+		etherPacket.setSourceMACAddress(srcMac.toLong());
+		etherPacket.setDestinationMACAddress(dstMac.toLong());
 		etherPacket.setEtherType(Ethernet.TYPE_IPv4);
 		return etherPacket;
 	}
@@ -153,67 +226,121 @@ public class Router extends Device
 		}
 		return null;
 	}
-	public int lookupSubnet(int ip){
-		for(Map.Entry<Integer, RIPv2Entry> entry : ripTable.entrySet()){
-			if((entry.getValue().getSubnetMask() & ip) == entry.getKey()){
-				//System.out.println("Router.java: lookupSubnet() found subnet " + 
-				//IPv4.fromIPv4Address(entry.getValue().getSubnetMask() & ip) + " for ip " + IPv4.fromIPv4Address(ip));
-				return ip & entry.getValue().getSubnetMask();
-			}
+	/**
+	 * Adds a route to the RIP table and installs it in the forwarding table;
+	 * packets are forwarded along the route once the forwarding table is published
+	 * @param entry
+	 */
+	private void installRoute(RIPv2Entry entry){
+		RIPv2Entry old = ripTable.put(entry.getAddress(), entry);
+		forwardingTable.insert(entry);
+		updater.track(entry);
+		if(old == null || old.getMetric() != entry.getMetric() || old.getNextHopAddress() != entry.getNextHopAddress()){
+			ripVersion.incrementAndGet();
+			sender.routeChanged(entry);
 		}
-		//System.out.println("Router.java: lookupSubnet(): entry failed");
-		return -1;
+	}
+
+	/**
+	 * Removes a route from the RIP table and the forwarding table;
+	 * packets stop using the route once the forwarding table is published
+	 * @param entry
+	 */
+	void removeRoute(RIPv2Entry entry){
+		ripTable.remove(entry.getAddress());
+		forwardingTable.remove(entry.getAddress(), entry.getSubnetMask());
+		ripVersion.incrementAndGet();
+		sender.routeRemoved(entry);
+	}
+
+	/**
+	 * Makes installed and removed routes visible to the forwarding path and
+	 * discards next hops resolved from the old routes
+	 */
+	void publishRoutes(){
+		forwardingTable.publish();
+		nextHopCache.invalidate();
 	}
 	/**
-	 * Updates RIPv2 table by examining the response packet
+	 * Updates RIPv2 table by examining the response packet. The whole message
+	 * is applied under one hold of the lock; routes whose metric is unchanged
+	 * are only refreshed, so new entries are allocated only for routes that
+	 * change, and the changes are published together
 	 * @param response
 	 */
 	public void handleResponse(RIPv2 response, int sourceSubnet, int sourceIP, Iface sourceIface){
-		for(RIPv2Entry entry : response.getEntries()){
-			int dest = entry.getAddress(); //destination subnet
-			int cost = entry.getMetric();
-			lock.lock();
-			try {
-				// updating the RIPv2 entry of the router that sent the response to indicate that the directly connected route is connected to a router, not a host
-				if(entry.getMetric() == 16){
-					continue;
-				}
-				ripTable.put(sourceSubnet, new RIPv2Entry(sourceSubnet, sourceIface.getSubnetMask(), 1, 0, sourceIface, false));
-				if (ripTable.containsKey(dest)) {
-					cost += ripTable.get(sourceSubnet).getMetric();
-					// if the new cost to destination is less than the current cost, update the ripTable with the new route
-					if (cost < ripTable.get(dest).getMetric()) {
-						ripTable.put(dest, new RIPv2Entry(dest, entry.getSubnetMask(), cost, sourceIP, sourceIface, false));
-						System.out.println("Router.java: handleResponse(): INSERTED ENTRY: " + IPv4.fromIPv4Address(dest) + " OUTPUTTING ROUTE TABLE");
-                        System.out.println("-----------------------------------------------------------------------------------------------------------");
-                        printRIPTable();
-                        System.out.println("------------------------------------------------------------------------------------------------------------");
+		long now = Clock.now();
+		boolean changed = false;
+		lock.lock();
+		try {
+			RIPv2Entry neighbor = null;
+			for(RIPv2Entry entry : response.getEntries()){
+				int dest = entry.getAddress(); //destination subnet
+				if(neighbor == null){
+					// updating the RIPv2 entry of the router that sent the response to indicate that the directly connected route is connected to a router, not a host
+					neighbor = ripTable.get(sourceSubnet);
+					if(neighbor != null && !neighbor.isHost() && neighbor.getMetric() == 1
+							&& neighbor.getNextHopAddress() == 0 && neighbor.getOutIface() == sourceIface){
+						neighbor.setLastUpdated(now);
 					}
-					else if(cost == ripTable.get(dest).getMetric()){
-						ripTable.get(dest).setLastUpdated(System.currentTimeMillis());
+					else {
+						neighbor = new RIPv2Entry(sourceSubnet, sourceIface.getSubnetMask(), 1, 0, sourceIface, false, now);
+						installRoute(neighbor);
+						changed = true;
 					}
 				}
-				// route does not exist in rip table, add it
-				else {
-					ripTable.put(dest, new RIPv2Entry(dest, entry.getSubnetMask(), cost + ripTable.get(sourceSubnet).getMetric(), sourceIP, sourceIface, false));
-					System.out.println("Router.java: handleResponse(): INSERTED ENTRY: " + IPv4.fromIPv4Address(dest) + " OUTPUTTING ROUTE TABLE");
-                    System.out.println("-----------------------------------------------------------------------------------------------------------");
-                    printRIPTable();
-                    System.out.println("------------------------------------------------------------------------------------------------------------");
+				int cost = Math.min(entry.getMetric() + neighbor.getMetric(), RIPv2Sender.INFINITY);
+				RIPv2Entry current = ripTable.get(dest);
+				if(cost >= RIPv2Sender.INFINITY){
+					// the destination is unreachable through the neighbor, so drop our route if it goes through that neighbor
+					if(current != null && !current.isHost() && current.getNextHopAddress() == sourceIP){
+						removeRoute(current);
+						changed = true;
+					}
+					continue;
 				}
-			} catch (Exception e){
-				e.printStackTrace();
-			} finally {
-				lock.unlock();
+				// if the route does not exist or the new cost to destination is less than the current cost, update the ripTable with the new route
+				if(current == null || cost < current.getMetric()){
+					installRoute(new RIPv2Entry(dest, entry.getSubnetMask(), cost, sourceIP, sourceIface, false, now));
+					changed = true;
+				}
+				else if(cost == current.getMetric()){
+					current.setLastUpdated(now);
+				}
+			}
+			if(changed){
+				// make every route learned from this response visible to the forwarding path at once
+				publishRoutes();
+				log.info("updated routes from " + IPv4.fromIPv4Address(sourceIP));
+				logRIPTable();
 			}
+		} catch (Exception e){
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	public void printRIPTable(){
+		System.out.print(ripTableToString());
+	}
+
+	/**
+	 * Logs the RIP table, at most once per dump interval
+	 */
+	void logRIPTable(){
+		if(log.isEnabled(Log.Level.INFO) && tableDumps.tryAcquire()){
+			log.info("RIP table:\n" + ripTableToString());
+		}
+	}
+
+	private String ripTableToString(){
+		StringBuilder sb = new StringBuilder();
 		for(Map.Entry<Integer, RIPv2Entry> entry : ripTable.entrySet()){
-			System.out.println("dest subnet: " + IPv4.fromIPv4Address(entry.getKey()) + " cost= " + entry.getValue().getMetric() + " next hop IP: " + IPv4.fromIPv4Address(entry.getValue().getNextHopAddress()) + 
-			" is host= " + entry.getValue().isHost() + " timestamp= " + entry.getValue().getLastUpdated());
+			sb.append("dest subnet: " + IPv4.fromIPv4Address(entry.getKey()) + " cost= " + entry.getValue().getMetric() + " next hop IP: " + IPv4.fromIPv4Address(entry.getValue().getNextHopAddress()) + 
+			" is host= " + entry.getValue().isHost() + " timestamp= " + entry.getValue().getLastUpdated() + "\n");
 		}
+		return sb.toString();
 	}
 
 	
@@ -243,22 +370,7 @@ public class Router extends Device
 				if(ripPacket.getCommand() == RIPv2.COMMAND_REQUEST){
 					// handle rip request
 					//System.out.println("Router.java: handlePacket() recevied rip request from " + ipPacket.getSourceAddress());
-					RIPv2 response = new RIPv2();
-					List<RIPv2Entry> entries = new ArrayList<>(ripTable.values());
-					response.setEntries(entries);
-					response.setCommand(RIPv2.COMMAND_RESPONSE);
-					
-					MACAddress srcMac = inIface.getMacAddress();
-					MACAddress dstMac = etherPacket.getSourceMAC();
-					
-					/*
-					MACAddress srcMac = MACAddress.valueOf("FF:FF:FF:FF:FF:FF");
-					MACAddress dstMac = inIface.getMacAddress();
-					*/
-					int srcIP = inIface.getIpAddress();
-					int dstIP = ipPacket.getSourceAddress();
-					Ethernet ripFrame = encapsulateRIPv2Packet(response, srcMac, dstMac, srcIP, dstIP);
-					sendPacket(ripFrame, inIface);
+					sender.sendCachedResponse(inIface, etherPacket.getSourceMACLong(), ipPacket.getSourceAddress());
 				}
 				// update tables based on RIP response packet
 				else{
@@ -268,7 +380,9 @@ public class Router extends Device
                     //printRIPTable();
 					//System.out.println("-------------------------------------------------------------");
 					int sourceSubnet = ipPacket.getSourceAddress() & inIface.getSubnetMask();
-					System.out.println("Router.java: handlePacket(): RECEIVED RIPv2 RESPONSE FROM: " + IPv4.fromIPv4Address(sourceSubnet));
+					if(log.isDebugEnabled()){
+						log.debug("received response from " + IPv4.fromIPv4Address(ipPacket.getSourceAddress()));
+					}
 					//System.out.println("Router.java: handlePacket(): source subnet of incoming rip response: " + 
 					//IPv4.fromIPv4Address(sourceSubnet));
 					handleResponse(ripPacket, sourceSubnet, ipPacket.getSourceAddress(), inIface);
@@ -285,6 +399,62 @@ public class Router extends Device
 	}
 	
 
+	/**
+	 * Forwards an IPv4 frame by rewriting its headers in place. Frames with 
+	 * IP options, a bad checksum, an expiring TTL, a multicast destination,
+	 * or a destination on this router, and frames without a known next hop,
+	 * are left unchanged for handlePacket.
+	 */
+	@Override
+	public Iface forwardFrame(ByteBuffer buf, int offset, int length, Iface inIface)
+	{
+		if (length < ETHER_HEADER_LENGTH + IPV4_HEADER_LENGTH)
+		{ return null; }
+		if (buf.getShort(offset + 12) != Ethernet.TYPE_IPv4)
+		{ return null; }
+
+		// Only IPv4 headers without options
+		int ip = offset + ETHER_HEADER_LENGTH;
+		if (buf.get(ip) != 0x45)
+		{ return null; }
+
+		// Verify checksum; summing a valid header, checksum included, yields 0
+		if (IPv4.calculateChecksum(buf, ip, IPV4_HEADER_LENGTH) != 0)
+		{ return null; }
+
+		// Check TTL
+		int ttl = buf.get(ip + 8) & 0xff;
+		if (ttl <= 1)
+		{ return null; }
+
+		// Check if packet is multicast or destined for one of router's interfaces
+		int destAddr = buf.getInt(ip + 16);
+		if ((destAddr & 0xf0000000) == 0xe0000000)
+		{ return null; }
+		for (Iface iface : this.interfaces.values())
+		{
+			if (destAddr == iface.getIpAddress())
+			{ return null; }
+		}
+
+		NextHopCache.Entry nextHop = resolveNextHop(destAddr);
+		if (null == nextHop)
+		{ return null; }
+
+		// Rewrite MAC addresses
+		MACAddress.put(buf, offset, nextHop.getDestinationMac());
+		MACAddress.put(buf, offset + MACAddress.MAC_ADDRESS_LENGTH,
+				nextHop.getSourceMac());
+
+		// Decrement TTL and patch the checksum for the changed word
+		short oldWord = buf.getShort(ip + 8);
+		buf.put(ip + 8, (byte)(ttl - 1));
+		short newWord = buf.getShort(ip + 8);
+		buf.putShort(ip + 10, IPv4.updateChecksum(buf.getShort(ip + 10), oldWord, newWord));
+
+		return nextHop.getOutIface();
+	}
+
 	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
@@ -294,23 +464,15 @@ public class Router extends Device
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 
-		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum)
+		// Verify checksum over the header only
+		if (!ipPacket.isChecksumValid())
 		{ return; }
 
-		// Check TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+		// Check TTL; the checksum is updated incrementally to match
+		ipPacket.decrementTtl();
 		if (0 == ipPacket.getTtl())
 		{ return; }
 
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
-
 		// Check if packet is destined for one of router's interfaces
 		for (Iface iface : this.interfaces.values())
 		{
@@ -322,6 +484,40 @@ public class Router extends Device
 		this.forwardIpPacket(etherPacket, inIface);
 	}
 
+	/**
+	 * Finds the interface and MAC addresses used to forward packets to a
+	 * destination, consulting the forwarding table and ARP cache on a cache miss
+	 * @param destAddr
+	 * @return the next hop, or null if there is no route or ARP entry
+	 */
+	private NextHopCache.Entry resolveNextHop(int destAddr)
+	{
+		NextHopCache.Entry nextHop = this.nextHopCache.lookup(destAddr);
+		if (nextHop != null)
+		{ return nextHop; }
+
+		int generation = this.nextHopCache.getGeneration();
+		// Find longest prefix match in the forwarding table
+		RIPv2Entry bestMatch = forwardingTable.lookup(destAddr);
+		if (null == bestMatch)
+		{ return null; }
+
+		// this router is the destination, do not forward
+		Iface outIface = bestMatch.getOutIface();
+		if (null == outIface)
+		{ return null; }
+
+		// If no gateway, then nextHop is IP destination
+		int nextHopAddr = bestMatch.getNextHopAddress();
+		nextHopAddr = (nextHopAddr == 0) ? destAddr : nextHopAddr;
+		ArpEntry arpEntry = this.arpCache.lookup(nextHopAddr);
+		if (null == arpEntry)
+		{ return null; }
+
+		return this.nextHopCache.insert(generation, destAddr, outIface,
+				outIface.getMacLong(), arpEntry.getMacLong());
+	}
+
 	private void forwardIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
@@ -335,15 +531,12 @@ public class Router extends Device
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int destAddr = ipPacket.getDestinationAddress();
-		int subnet = lookupSubnet(destAddr); // to retrieve entry from ripTable for which subnet is a key.
-		//System.out.println("Router.java: forwardIpPacket(): dest addr: " + IPv4.fromIPv4Address(destAddr) + " dest subnet: " + IPv4.fromIPv4Address(subnet));
 		// Find matching route table entry 
 		// RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
-		// Find matching route in rip table entry
-		RIPv2Entry bestMatch = ripTable.get(subnet);
-		//System.out.println("Router.java: forwardIpPacket(): bestMatch subnet: " + IPv4.fromIPv4Address(bestMatch.getAddress()));
-		// If no entry matched, do nothing
-		if (null == bestMatch)
+		// Find the next hop, from the cache if this destination was seen recently
+		NextHopCache.Entry nextHop = resolveNextHop(destAddr);
+		// If no route or ARP entry matched, do nothing
+		if (null == nextHop)
 		{ return; }
 
 		// Make sure we don't sent a packet back out the interface it came in
@@ -352,28 +545,11 @@ public class Router extends Device
 		if (outIface == inIface)
 		{ return; }
         */
-	
-		// this router is the destination, do not forward
-		Iface outIface = bestMatch.getOutIface();
-		//System.out.println("Router.java: forwardIpPacket() outIface is " + outIface);
-		if(outIface == null) return;
-		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
-		int nextHopAddr = bestMatch.getNextHopAddress();
-		nextHopAddr = (nextHopAddr == 0) ? destAddr : nextHopAddr;
-		//System.out.println("Router.java: forwardIpPacket(): nextHop address: " + IPv4.fromIPv4Address(nextHopAddr));
-		// Set source MAC address in Ethernet header
-		
-		// If no gateway, then nextHop is IP destination
-		/*
-		int nextHop = bestMatch.getGatewayAddress();
-		if (0 == nextHop)
-		{ nextHop = dstAddr; }
-		*/
-		// Set destination MAC address in Ethernet header
-		ArpEntry arpEntry = this.arpCache.lookup(nextHopAddr);
-		if (null == arpEntry)
-		{ return; }
-		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+
+		// Set source and destination MAC addresses in Ethernet header
+		Iface outIface = nextHop.getOutIface();
+		etherPacket.setSourceMACAddress(nextHop.getSourceMac());
+		etherPacket.setDestinationMACAddress(nextHop.getDestinationMac());
 		//System.out.println("Router.java(): forwardIPPacket(): Sending IP packet to " + IPv4.fromIPv4Address(destAddr));
 		this.sendPacket(etherPacket, outIface);
 
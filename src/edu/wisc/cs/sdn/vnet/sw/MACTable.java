@@ -1,77 +1,301 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Iface;
 
-import net.floodlightcontroller.packet.MACAddress;
-
 /**
- * A MAC learning table.
+ * A MAC learning table. Entries are kept in an open-addressing hash table
+ * keyed on the 48-bit MAC address, with the interface index and time last
+ * seen held in parallel arrays, so learning a known address or looking up
+ * an address is one probe sequence with no locking or allocation. Adding
+ * and removing addresses is serialized; removed addresses leave tombstones
+ * that are purged when the table is rebuilt. A tombstone's slot is not
+ * reused until then, so an unlocked refresh that races with a removal can
+ * only write to a dead slot, never to another address's entry.
+ * <p>
+ * Each address has one aging timer, scheduled when it is learned. Seeing
+ * the address again only records the time; when the timer fires it either
+ * removes the address or re-arms itself for the remaining time.
  * @author Aaron Gember-Jacobson
  */
-public class MACTable implements Runnable
+public class MACTable
 {
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
-	
-	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
-	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+
+	/** Default number of slots in the table */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/** Key of a slot that has never held an address */
+	private static final long EMPTY = -1;
+
+	/** Key of a slot whose address was removed */
+	private static final long DELETED = -2;
+
+	/** Slots in the table; replaced, never resized, when the table is rebuilt */
+	private volatile Slots slots;
+
+	/** Switch interfaces indexed by interface index */
+	private volatile Iface[] ifaces;
+
+	/** Number of slots holding an address */
+	private int live;
+
+	/** Number of slots holding a tombstone */
+	private int deleted;
+
+	/** Clock used to age out entries */
+	private final Clock clock;
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
-	 * @param sw switch to which this table belongs
 	 */
 	public MACTable()
+	{ this(DEFAULT_CAPACITY, Clock.get()); }
+
+	/**
+	 * Initializes an empty MAC learning table for a switch.
+	 * @param capacity initial number of slots; rounded up to a power of two
+	 * @param clock clock used to age out entries
+	 */
+	public MACTable(int capacity, Clock clock)
 	{
-		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
+		this.slots = new Slots(Integer.highestOneBit(Math.max(2, capacity) - 1) << 1);
+		this.ifaces = new Iface[0];
+		this.live = 0;
+		this.deleted = 0;
+		this.clock = clock;
 	}
-	
-	public void insert(MACAddress macAddress, Iface iface)
+
+	/**
+	 * Learn, or refresh, the interface on which a MAC address was seen.
+	 * @param macAddress MAC address in the lower 48 bits of a long
+	 * @param iface interface on which the address was seen
+	 */
+	public void insert(long macAddress, Iface iface)
 	{
-		MACTableEntry entry = this.lookup(macAddress);
-		if(entry != null)
-		{ entry.update(iface); }
-		else
-		{ 
-			entry = new MACTableEntry(macAddress, iface);
-			this.entries.put(macAddress, entry); 
+		long now = this.clock.currentTimeMillis();
+		Slots slots = this.slots;
+		int slot = slots.find(macAddress);
+		if (slot >= 0 && this.isKnown(iface))
+		{
+			slots.seen.set(slot, now);
+			slots.ports.set(slot, iface.getIndex());
+			
+			// Done unless the address was removed, or the table rebuilt from
+			// a copy that may have missed the refresh
+			if (slots.keys.get(slot) == macAddress && !slots.retired)
+			{ return; }
+		}
+
+		synchronized(this)
+		{
+			if (!this.isKnown(iface))
+			{
+				Iface[] ifaces = Arrays.copyOf(this.ifaces, 
+						Math.max(this.ifaces.length, iface.getIndex() + 1));
+				ifaces[iface.getIndex()] = iface;
+				this.ifaces = ifaces;
+			}
+
+			slots = this.slots;
+			slot = slots.find(macAddress);
+			if (slot >= 0)
+			{
+				slots.seen.set(slot, now);
+				slots.ports.set(slot, iface.getIndex());
+				return;
+			}
+
+			if ((this.live + this.deleted + 1) * 2 > slots.keys.length())
+			{ slots = this.rebuild(); }
+			slot = slots.claim(macAddress);
+			this.live++;
+
+			// Publish the key last so readers never see it with stale values
+			slots.seen.set(slot, now);
+			slots.ports.set(slot, iface.getIndex());
+			slots.keys.set(slot, macAddress);
 		}
+		this.clock.schedule(new Expiry(macAddress), TIMEOUT);
 	}
-	
-	public MACTableEntry lookup(MACAddress macAddress) 
+
+	/**
+	 * Find the interface on which a MAC address was last seen.
+	 * @param macAddress MAC address in the lower 48 bits of a long
+	 * @return the interface; null if the address is not in the table
+	 */
+	public Iface lookup(long macAddress)
 	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
+		Slots slots = this.slots;
+		int slot = slots.find(macAddress);
+		if (slot < 0)
+		{ return null; }
+		int port = slots.ports.get(slot);
+
+		// The address may have been removed since the key was read
+		if (slots.keys.get(slot) != macAddress)
+		{ return null; }
+		Iface[] ifaces = this.ifaces;
+		return (port < ifaces.length) ? ifaces[port] : null;
 	}
-	
+
 	/**
-	 * Every second: timeout MAC table entries.
+	 * Remove a MAC address from the table if it has not been seen since a
+	 * given time.
+	 * @param macAddress MAC address in the lower 48 bits of a long
+	 * @param lastSeen time (in milliseconds since the epoch) the address was
+	 *        last seen when it was found to have expired
+	 * @return true if the address was removed, otherwise false
 	 */
-	public void run()
+	public synchronized boolean remove(long macAddress, long lastSeen)
 	{
-		while (true)
+		Slots slots = this.slots;
+		int slot = slots.find(macAddress);
+		if (slot < 0 || !slots.seen.compareAndSet(slot, lastSeen, 0))
+		{ return false; }
+		slots.keys.set(slot, DELETED);
+		this.live--;
+		this.deleted++;
+		return true;
+	}
+
+	/**
+	 * @return number of MAC addresses in the table
+	 */
+	public synchronized int size()
+	{ return this.live; }
+
+	private boolean isKnown(Iface iface)
+	{
+		Iface[] ifaces = this.ifaces;
+		return iface.getIndex() < ifaces.length && ifaces[iface.getIndex()] == iface;
+	}
+
+	/**
+	 * Copy the live entries into new slots, dropping tombstones and growing
+	 * the table if it is more than a quarter full. The old slots are
+	 * retired before they are copied, so an unlocked refresh that the copy
+	 * may have missed is repeated on the new slots.
+	 */
+	private Slots rebuild()
+	{
+		Slots old = this.slots;
+		int capacity = old.keys.length();
+		if (this.live * 4 >= capacity)
+		{ capacity *= 2; }
+
+		old.retired = true;
+		Slots slots = new Slots(capacity);
+		for (int i = 0; i < old.keys.length(); i++)
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
+			long key = old.keys.get(i);
+			if (key < 0)
+			{ continue; }
+			int slot = slots.claim(key);
+			slots.seen.set(slot, old.seen.get(i));
+			slots.ports.set(slot, old.ports.get(i));
+			slots.keys.set(slot, key);
+		}
+		this.deleted = 0;
+		this.slots = slots;
+		return slots;
+	}
+
+	/**
+	 * Aging timer for one MAC address.
+	 */
+	private class Expiry implements Runnable
+	{
+		private final long macAddress;
+
+		Expiry(long macAddress)
+		{ this.macAddress = macAddress; }
+
+		public void run()
+		{
+			while (true)
 			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
+				Slots slots = MACTable.this.slots;
+				int slot = slots.find(this.macAddress);
+				if (slot < 0)
+				{ return; }
+				long seen = slots.seen.get(slot);
+				long age = clock.currentTimeMillis() - seen;
+				if (age < TIMEOUT)
+				{
+					// Seen since the timer was armed
+					clock.schedule(this, TIMEOUT - age);
+					return;
+				}
+				if (remove(this.macAddress, seen))
+				{ return; }
 			}
 		}
 	}
+
+	/**
+	 * Parallel arrays holding the keys and values of the table.
+	 */
+	private static class Slots
+	{
+		final AtomicLongArray keys;
+		final AtomicIntegerArray ports;
+		final AtomicLongArray seen;
+		final int mask;
+
+		/** True once the slots are being replaced by a rebuild */
+		volatile boolean retired;
+
+		Slots(int capacity)
+		{
+			this.keys = new AtomicLongArray(capacity);
+			this.ports = new AtomicIntegerArray(capacity);
+			this.seen = new AtomicLongArray(capacity);
+			this.mask = capacity - 1;
+			for (int i = 0; i < capacity; i++)
+			{ this.keys.set(i, EMPTY); }
+		}
+
+		/**
+		 * @return the slot holding a MAC address; -1 if it is not present
+		 */
+		int find(long macAddress)
+		{
+			int slot = hash(macAddress) & this.mask;
+			for (int probes = 0; probes <= this.mask; probes++)
+			{
+				long key = this.keys.get(slot);
+				if (key == macAddress)
+				{ return slot; }
+				if (key == EMPTY)
+				{ return -1; }
+				slot = (slot + 1) & this.mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the first empty slot in the probe sequence of a MAC address;
+		 *         tombstones are skipped, and the table must have at least
+		 *         one empty slot
+		 */
+		int claim(long macAddress)
+		{
+			int slot = hash(macAddress) & this.mask;
+			while (this.keys.get(slot) != EMPTY)
+			{ slot = (slot + 1) & this.mask; }
+			return slot;
+		}
+
+		private static int hash(long macAddress)
+		{
+			long h = macAddress * 0x9e3779b97f4a7c15L;
+			return (int)(h ^ (h >>> 32));
+		}
+	}
 }
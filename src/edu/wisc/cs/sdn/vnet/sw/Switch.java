@@ -4,12 +4,15 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson
  */
 public class Switch extends Device
 {
+	private static final Log log = Log.get("sw");
+
 	private MACTable macTable;
 	
 	/**
@@ -29,17 +32,20 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		if (log.isDebugEnabled())
+		{
+			log.debug("*** -> Received packet: " +
+					etherPacket.toString().replace("\n", "\n\t"));
+		}
 		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
 		
-		this.macTable.insert(etherPacket.getSourceMAC(), inIface);
+		this.macTable.insert(etherPacket.getSourceMACLong(), inIface);
 		
-		MACTableEntry entry = this.macTable.lookup(etherPacket.getDestinationMAC());
-		if (entry != null)
-		{ this.sendPacket(etherPacket, entry.getInterface()); }
+		Iface outIface = this.macTable.lookup(etherPacket.getDestinationMACLong());
+		if (outIface != null)
+		{ this.sendPacket(etherPacket, outIface); }
 		else
 		{
 			for (Iface iface : this.interfaces.values()) 
@@ -47,7 +53,8 @@ public class Switch extends Device
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					if (log.isDebugEnabled())
+					{ log.debug("Send packet out interface "+iface); }
 				}
 			}
 		}
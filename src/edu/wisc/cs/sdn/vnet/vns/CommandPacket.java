@@ -6,6 +6,15 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Length of the interface name field */
+	public static final int IFACE_NAME_LENGTH = 16;
+	
+	/** Offset of the interface name field within the command */
+	public static final int IFACE_NAME_OFFSET = 4 + 4;
+	
+	/** Offset of the Ethernet frame within the command */
+	public static final int FRAME_OFFSET = IFACE_NAME_OFFSET + IFACE_NAME_LENGTH;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -16,7 +25,7 @@ public class CommandPacket extends Command
 	{
 		super.deserialize(buf);
 				
-		byte[] tmpBytes = new byte[16];
+		byte[] tmpBytes = new byte[IFACE_NAME_LENGTH];
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
@@ -28,7 +37,22 @@ public class CommandPacket extends Command
 	}
 	
 	protected int getSize()
-	{ return super.getSize() + 16; }
+	{ return super.getSize() + IFACE_NAME_LENGTH; }
+	
+	/**
+	 * Write the header of a packet command for a frame that is already 
+	 * serialized.
+	 * @param bb buffer the header is written to
+	 * @param size size of the command, including the frame
+	 * @param ifaceName name of the interface the frame is sent out
+	 */
+	protected static void putHeader(ByteBuffer bb, int size, String ifaceName)
+	{
+		bb.putInt(size);
+		bb.putInt(Command.VNS_PACKET);
+		for (int i = 0; i < IFACE_NAME_LENGTH; i++)
+		{ bb.put((i < ifaceName.length()) ? (byte)ifaceName.charAt(i) : 0); }
+	}
 	
 	protected byte[] serialize()
 	{
@@ -42,7 +66,7 @@ public class CommandPacket extends Command
         byte[] parentData = super.serialize();
         
         bb.put(parentData);
-        byte[] tmp = new byte[16];
+        byte[] tmp = new byte[IFACE_NAME_LENGTH];
         System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
                 this.mInterfaceName.length());
         bb.put(tmp);
@@ -0,0 +1,243 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.SpscRing;
+
+/**
+ * Hands packet commands received from the server to worker threads. The
+ * thread reading from the server frames each command and queues it in the
+ * ring of one worker, chosen by hashing the packet's flow (addresses,
+ * protocol, and ports), so packets of a flow are handled in order.
+ * <p>
+ * When a worker's ring is full, data packets are dropped and counted;
+ * control packets (anything other than IPv4, and RIP) are never dropped,
+ * and the reading thread waits for the worker to make room.
+ */
+class PacketPipeline
+{
+	/** Default number of packets queued for each worker */
+	public static final int DEFAULT_RING_SIZE = 1024;
+
+	/** Time (in nanoseconds) the reading thread sleeps before checking again
+	 *  for room in a full ring */
+	private static final long WAIT_NANOS = 100000;
+
+	/** Longest time (in nanoseconds) an idle worker sleeps before checking
+	 *  whether the pipeline has stopped */
+	private static final long IDLE_NANOS = 100000000;
+
+	/** Minimum time (in milliseconds) between warnings about dropped packets */
+	private static final long DROP_WARNING_INTERVAL = 1000;
+
+	private static final Log log = Log.get("vns");
+
+	private final VNSComm vnsComm;
+
+	private final Worker[] workers;
+
+	/** Number of data packets dropped because a worker's ring was full */
+	private final AtomicLong dropped;
+
+	/** Number of control packets that waited for room in a worker's ring */
+	private final AtomicLong blocked;
+
+	/** Limits how often dropped packets are reported */
+	private final Log.RateLimit dropWarnings;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Create and start the workers.
+	 * @param vnsComm connection the packets were received on
+	 * @param device device whose thread mode the workers run in
+	 * @param workers number of worker threads
+	 * @param ringSize number of packets queued for each worker
+	 */
+	PacketPipeline(VNSComm vnsComm, Device device, int workers, int ringSize)
+	{
+		this.vnsComm = vnsComm;
+		this.dropped = new AtomicLong();
+		this.blocked = new AtomicLong();
+		this.dropWarnings = new Log.RateLimit(DROP_WARNING_INTERVAL);
+		this.workers = new Worker[Math.max(1, workers)];
+		for (int i = 0; i < this.workers.length; i++)
+		{
+			this.workers[i] = new Worker(ringSize);
+			this.workers[i].thread = device.startThread("Worker-" + i, this.workers[i]);
+		}
+	}
+
+	/**
+	 * Queue a packet command for its flow's worker; must only be called by
+	 * the thread reading from the server.
+	 * @param command the packet command; owned by the pipeline from now on
+	 */
+	void dispatch(byte[] command)
+	{
+		Worker worker = this.workers[(flowHash(command) & 0x7fffffff)
+				% this.workers.length];
+		if (!worker.ring.offer(command))
+		{
+			if (!isControl(command))
+			{
+				long dropped = this.dropped.incrementAndGet();
+				if (this.dropWarnings.tryAcquire())
+				{ log.warn("worker rings full; dropped " + dropped + " packets"); }
+				return;
+			}
+
+			// Control packets are never dropped; wait for the worker
+			this.blocked.incrementAndGet();
+			do
+			{
+				worker.wake();
+				LockSupport.parkNanos(WAIT_NANOS);
+			} while (!worker.ring.offer(command));
+		}
+		worker.wake();
+	}
+
+	/**
+	 * Stop the workers once they have handled the packets queued for them.
+	 */
+	void stop()
+	{
+		this.stopped = true;
+		for (Worker worker : this.workers)
+		{
+			worker.wake();
+			try
+			{ worker.thread.join(); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+	}
+
+	/**
+	 * @return number of data packets dropped because a worker's ring was full
+	 */
+	long getDropped()
+	{ return this.dropped.get(); }
+
+	/**
+	 * @return number of control packets that waited for room in a ring
+	 */
+	long getBlocked()
+	{ return this.blocked.get(); }
+
+	/**
+	 * Hash the flow of a packet command: the IPv4 addresses, protocol, and
+	 * TCP or UDP ports, or the MAC addresses for other packets.
+	 */
+	private static int flowHash(byte[] command)
+	{
+		int frame = CommandPacket.FRAME_OFFSET;
+		int hash;
+		if (isIPv4(command))
+		{
+			int ip = frame + 14;
+			int protocol = command[ip + 9];
+			hash = getInt(command, ip + 12) * 31 + getInt(command, ip + 16);
+			hash = hash * 31 + protocol;
+			int ports = ip + (command[ip] & 0xf) * 4;
+			if ((IPv4.PROTOCOL_TCP == protocol || IPv4.PROTOCOL_UDP == protocol)
+					&& ports + 4 <= command.length)
+			{ hash = hash * 31 + getInt(command, ports); }
+		}
+		else
+		{
+			hash = 0;
+			for (int i = frame; i < frame + 12 && i < command.length; i++)
+			{ hash = hash * 31 + command[i]; }
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @return true if the packet must not be dropped: anything other than
+	 *         IPv4, such as ARP, and RIP messages
+	 */
+	private static boolean isControl(byte[] command)
+	{
+		if (!isIPv4(command))
+		{ return true; }
+		int ip = CommandPacket.FRAME_OFFSET + 14;
+		int udp = ip + (command[ip] & 0xf) * 4;
+		return IPv4.PROTOCOL_UDP == command[ip + 9] && udp + 4 <= command.length
+				&& 520 == (((command[udp + 2] & 0xff) << 8) | (command[udp + 3] & 0xff));
+	}
+
+	private static boolean isIPv4(byte[] command)
+	{
+		int frame = CommandPacket.FRAME_OFFSET;
+		return command.length >= frame + 14 + 20
+				&& Ethernet.TYPE_IPv4 == (short)(((command[frame + 12] & 0xff) << 8)
+						| (command[frame + 13] & 0xff));
+	}
+
+	private static int getInt(byte[] b, int offset)
+	{
+		return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+				| ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+	}
+
+	/**
+	 * A worker thread and the ring of packets queued for it.
+	 */
+	private class Worker implements Runnable
+	{
+		final SpscRing<byte[]> ring;
+		volatile Thread thread;
+
+		/** True while the worker is, or is about to be, parked */
+		volatile boolean waiting;
+
+		Worker(int ringSize)
+		{ this.ring = new SpscRing<byte[]>(ringSize); }
+
+		void wake()
+		{
+			if (this.waiting)
+			{
+				this.waiting = false;
+				LockSupport.unpark(this.thread);
+			}
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				byte[] command = this.ring.poll();
+				if (command != null)
+				{
+					try
+					{ vnsComm.handlePacketCommand(ByteBuffer.wrap(command), 0, command.length); }
+					catch (RuntimeException e)
+					{ log.error("failed to handle packet: " + e); }
+					continue;
+				}
+
+				// Idle: write the packets sent while handling the queued ones
+				vnsComm.flush();
+				if (stopped)
+				{ return; }
+
+				// Announce the wait before the last check, so dispatch either
+				// sees the announcement or the worker sees the packet
+				this.waiting = true;
+				if (this.ring.isEmpty() && !stopped)
+				{ LockSupport.parkNanos(this, IDLE_NANOS); }
+				this.waiting = false;
+			}
+		}
+	}
+}
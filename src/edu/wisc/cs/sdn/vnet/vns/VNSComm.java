@@ -1,28 +1,79 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Transport;
 
-public class VNSComm 
+public class VNSComm implements Transport
 {
-	private Socket socket;
+	/** Maximum length of a command accepted from the server */
+	public static final int MAX_COMMAND_LENGTH = 10000;
+	
+	/** Size of the buffer commands are received into */
+	private static final int RECEIVE_BUFFER_SIZE = 1 << 16;
+	
+	/** Maximum number of packets queued before they are written */
+	private static final int MAX_BATCH_PACKETS = 64;
+	
+	/** Maximum number of bytes queued before they are written */
+	private static final int MAX_BATCH_BYTES = 1 << 16;
+	
+	private SocketChannel channel;
 	private Device device;
 	
+	/** Bytes received from the server; the unparsed bytes lie between the 
+	 * position and the limit, and commands are parsed in place */
+	private ByteBuffer inBuf;
+	
+	/** Workers that handle received packets; null if packets are handled 
+	 * by the thread that reads from the server */
+	private PacketPipeline pipeline;
+	
+	/** Buffers written to the server by the next gathering write; guarded
+	 * by this */
+	private ByteBuffer[] outQueue;
+	
+	/** Number of buffers in the output queue */
+	private int queuedBuffers;
+	
+	/** Number of packets in the output queue */
+	private int queuedPackets;
+	
+	/** Number of bytes in the output queue */
+	private int queuedBytes;
+	
+	/** Packet command headers, one for each packet that can be queued */
+	private ByteBuffer[] headers;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.inBuf = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+		this.inBuf.flip();
+		
+		this.outQueue = new ByteBuffer[2 * MAX_BATCH_PACKETS];
+		this.headers = new ByteBuffer[MAX_BATCH_PACKETS];
+		ByteBuffer headerBuf = ByteBuffer.allocateDirect(
+				MAX_BATCH_PACKETS * CommandPacket.FRAME_OFFSET);
+		for (int i = 0; i < MAX_BATCH_PACKETS; i++)
+		{
+			headerBuf.limit((i + 1) * CommandPacket.FRAME_OFFSET);
+			headerBuf.position(i * CommandPacket.FRAME_OFFSET);
+			this.headers[i] = headerBuf.slice();
+		}
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -39,7 +90,7 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{ channel = SocketChannel.open(new InetSocketAddress(addr, port & 0xffff)); }
 		catch (IOException e) 
 		{
 			e.printStackTrace();
@@ -51,15 +102,9 @@ public class VNSComm
 		cmdOpen.mVirtualHostId = this.device.getHost();
 		byte[] buf = cmdOpen.serialize();
 		
-		try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
+		if (!this.writeToServer(buf, 0, buf.length))
 		{
-			e.printStackTrace();
+			System.err.println("Error sending open command");
 			return false;
 		}
 		
@@ -108,73 +153,47 @@ public class VNSComm
 	
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		// Receive until the buffer holds a whole command; one read may 
+		// receive several commands, which are parsed without reading again
+		int len;
+		while (true)
 		{
-			e.printStackTrace();
-			return false;
-		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
-		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+			if (this.inBuf.remaining() >= 4)
 			{
-				e.printStackTrace();
-				return false;
+				len = this.inBuf.getInt(this.inBuf.position());
+				if (len > MAX_COMMAND_LENGTH || len < 8)
+				{
+					System.err.println(String.format(
+							"Error: bad command length %d", len));
+					try { channel.close(); } catch (IOException e) { }
+					return false;
+				}
+				if (this.inBuf.remaining() >= len)
+				{ break; }
 			}
-		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (len > 10000 || len < 0)
-		{
-			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
-			return false;
-		}
-		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+			
+			// Write the packets sent while handling the received commands 
+			// before waiting for more
+			this.flush();
+			
+			boolean partial = this.inBuf.hasRemaining();
+			if (!this.receive())
 			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
+				if (partial)
+				{
+					System.err.println("Error: failed reading command body");
+					try { channel.close(); } catch (IOException e) { }
+				}
 				return false;
 			}
 		}
 		
+		// Consume the command; it stays in the buffer until the next receive
+		int start = this.inBuf.position();
+		this.inBuf.position(start + len);
+		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = this.inBuf.getInt(start + 4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -186,22 +205,20 @@ public class VNSComm
 			}
 		}
 		
-		buf.position(0);
+		if (Command.VNS_PACKET == command)
+		{
+			// Hand the packet to a worker, or handle it on this thread
+			if (this.pipeline != null)
+			{ this.pipeline.dispatch(this.copyCommand(start, len).array()); }
+			else
+			{ this.handlePacketCommand(this.inBuf, start, len); }
+			return true;
+		}
+		
+		// Other commands are decoded from their own copy
+		ByteBuffer buf = this.copyCommand(start, len);
 		switch(command)
 		{
-		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Log packet
-            if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
-			break;
-			
 		case Command.VNS_CLOSE:
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
@@ -223,6 +240,260 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Handle a received packet command. The frame is forwarded on the
+	 * device's raw path if the device can; otherwise it is decoded, logged,
+	 * and passed to the device.
+	 * @param buf buffer holding the command
+	 * @param start offset of the command in the buffer
+	 * @param len length of the command
+	 */
+	void handlePacketCommand(ByteBuffer buf, int start, int len)
+	{
+		// Let the device forward the frame without decoding it, if it can
+		if (this.forwardFrame(buf, start, len))
+		{ return; }
+		
+		// Decode the packet from its own copy, since the device may keep 
+		// references to the decoded packet
+		if (buf == this.inBuf)
+		{ buf = this.copyCommand(start, len); }
+		CommandPacket cmdPkt = new CommandPacket();
+		cmdPkt.deserialize(buf);
+		
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+		
+		// Pass to device, student's code should take over here
+		this.device.handlePacket(cmdPkt.etherPacket, 
+				this.device.getInterface(cmdPkt.mInterfaceName));
+	}
+	
+	/**
+	 * Handle received packets on worker threads instead of the thread that
+	 * reads from the server.
+	 * @param workers number of worker threads
+	 */
+	public void startWorkers(int workers)
+	{ this.startWorkers(workers, PacketPipeline.DEFAULT_RING_SIZE); }
+	
+	/**
+	 * Handle received packets on worker threads instead of the thread that
+	 * reads from the server.
+	 * @param workers number of worker threads
+	 * @param ringSize number of packets queued for each worker
+	 */
+	public void startWorkers(int workers, int ringSize)
+	{ this.pipeline = new PacketPipeline(this, this.device, workers, ringSize); }
+	
+	/**
+	 * @return number of received data packets dropped because the workers
+	 *         could not keep up
+	 */
+	public long getDroppedPackets()
+	{ return (null == this.pipeline) ? 0 : this.pipeline.getDropped(); }
+	
+	/**
+	 * Stop the worker threads, if any, once they have handled the packets
+	 * queued for them.
+	 */
+	public void stopWorkers()
+	{
+		if (this.pipeline != null)
+		{ this.pipeline.stop(); }
+	}
+	
+	/**
+	 * Receive more bytes from the server, keeping any unparsed bytes.
+	 * @return true if bytes were received, otherwise false
+	 */
+	private boolean receive()
+	{
+		this.inBuf.compact();
+		try
+		{
+			if (this.channel.read(this.inBuf) < 0)
+			{ throw new EOFException(); }
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{ this.inBuf.flip(); }
+		return true;
+	}
+	
+	/**
+	 * Copy a received command out of the receive buffer.
+	 * @param start offset of the command in the receive buffer
+	 * @param len length of the command
+	 * @return a buffer holding only the command
+	 */
+	private ByteBuffer copyCommand(int start, int len)
+	{
+		byte[] data = new byte[len];
+		int next = this.inBuf.position();
+		this.inBuf.position(start);
+		this.inBuf.get(data);
+		this.inBuf.position(next);
+		return ByteBuffer.wrap(data);
+	}
+	
+	/**
+	 * Offer a received packet command to the device's raw forwarding path.
+	 * If the device forwards the frame, the command is rewritten to name the
+	 * outgoing interface and the same bytes are sent back to the server.
+	 * @param buf buffer holding the packet command
+	 * @param start offset of the packet command in the buffer
+	 * @param len length of the packet command
+	 * @return true if the device forwarded the frame and it was queued,
+	 *         otherwise false
+	 */
+	private boolean forwardFrame(ByteBuffer buf, int start, int len)
+	{
+		// Packets are logged as decoded frames, so only use the raw path
+		// when logging is disabled
+		if (this.device.getLogFile() != null)
+		{ return false; }
+		
+		Iface inIface = this.findInterface(buf, start + CommandPacket.IFACE_NAME_OFFSET);
+		if (null == inIface)
+		{ return false; }
+		
+		Iface outIface = this.device.forwardFrame(buf, 
+				start + CommandPacket.FRAME_OFFSET, 
+				len - CommandPacket.FRAME_OFFSET, inIface);
+		if (null == outIface)
+		{ return false; }
+		
+		// Name the outgoing interface in place of the incoming interface
+		String outIfaceName = outIface.getName();
+		for (int i = 0; i < CommandPacket.IFACE_NAME_LENGTH; i++)
+		{
+			buf.put(start + CommandPacket.IFACE_NAME_OFFSET + i, 
+					(i < outIfaceName.length()) ? (byte)outIfaceName.charAt(i) : 0);
+		}
+		
+		// The command stays in the buffer until the queue is flushed
+		ByteBuffer command = buf.duplicate();
+		command.limit(start + len);
+		command.position(start);
+		return this.enqueue(command, null, len);
+	}
+	
+	/**
+	 * Find the interface named by a NUL-padded name field, without decoding
+	 * the name.
+	 * @param buf buffer holding the name field
+	 * @param offset offset of the name field in the buffer
+	 * @return the interface; null if no interface has the name
+	 */
+	private Iface findInterface(ByteBuffer buf, int offset)
+	{
+		for (Iface iface : this.device.getInterfaces().values())
+		{
+			String name = iface.getName();
+			if (name.length() > CommandPacket.IFACE_NAME_LENGTH)
+			{ continue; }
+			int i = 0;
+			while (i < name.length() && buf.get(offset + i) == name.charAt(i))
+			{ i++; }
+			if (i == name.length() && (i == CommandPacket.IFACE_NAME_LENGTH 
+					|| 0 == buf.get(offset + i)))
+			{ return iface; }
+		}
+		return null;
+	}
+	
+	/**
+	 * Write bytes to the server, after any queued packets.
+	 * @return true if the bytes were written, otherwise false
+	 */
+	private synchronized boolean writeToServer(byte[] buf, int offset, int len)
+	{
+		if (!this.flush())
+		{ return false; }
+		try
+		{
+			ByteBuffer bb = ByteBuffer.wrap(buf, offset, len);
+			while (bb.hasRemaining())
+			{ this.channel.write(bb); }
+		}
+		catch(IOException e)
+		{ return false; }
+		return true;
+	}
+	
+	/**
+	 * Queue a command to be written to the server, writing the queue first
+	 * if it is full.
+	 * @param first the command, or its header if the command is split
+	 * @param second the rest of the command; null if the command is whole
+	 * @param len length of the command
+	 * @return true if the command was queued, otherwise false
+	 */
+	private synchronized boolean enqueue(ByteBuffer first, ByteBuffer second, 
+			int len)
+	{
+		if (!this.makeRoom(len))
+		{ return false; }
+		this.outQueue[this.queuedBuffers++] = first;
+		if (second != null)
+		{ this.outQueue[this.queuedBuffers++] = second; }
+		this.queuedPackets++;
+		this.queuedBytes += len;
+		return true;
+	}
+	
+	/**
+	 * Write the queued packets if another command of a given length would
+	 * make the queue too large.
+	 * @return false if the queued packets could not be written, otherwise true
+	 */
+	private synchronized boolean makeRoom(int len)
+	{
+		if (this.queuedPackets < MAX_BATCH_PACKETS 
+				&& this.queuedBytes + len <= MAX_BATCH_BYTES)
+		{ return true; }
+		return this.flush();
+	}
+	
+	/**
+	 * Write all queued packets to the server with one gathering write.
+	 * Packets are queued by {@link #sendFrame(byte[], int, int, String)}
+	 * and by the raw forwarding path; packets sent while 
+	 * handling received commands are flushed before waiting for more 
+	 * commands, while other threads must flush the packets they send.
+	 * @return true if the packets were written, otherwise false
+	 */
+	public synchronized boolean flush()
+	{
+		if (0 == this.queuedBuffers)
+		{ return true; }
+		try
+		{
+			long remaining = this.queuedBytes;
+			while (remaining > 0)
+			{ remaining -= this.channel.write(this.outQueue, 0, this.queuedBuffers); }
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		finally
+		{
+			Arrays.fill(this.outQueue, 0, this.queuedBuffers, null);
+			this.queuedBuffers = 0;
+			this.queuedPackets = 0;
+			this.queuedBytes = 0;
+		}
+		return true;
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -233,7 +504,7 @@ public class VNSComm
 					+ ", does not exist");
 			return false;
 		}
-		if (!iface.getMacAddress().equals(etherPacket.getSourceMAC()))
+		if (iface.getMacLong() != etherPacket.getSourceMACLong())
 		{
 			System.err.println("** Error, source address does not match interface"); 
 			return false;
@@ -241,35 +512,34 @@ public class VNSComm
 		return true;
 	}
 	
-	// sr_send_packet
-	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+	/**
+	 * Queue a serialized Ethernet frame to be sent out an interface. The
+	 * frame is written to the server when the queue is flushed, and must not
+	 * be modified until then.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface to send the frame out
+	 * @return true if the frame was queued, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
-		
-		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
-		{
-			System.err.println("*** Error: problem with ethernet header, check log");
-			return false;
-		}*/
-		
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+        { this.device.getLogFile().dump(frame, offset, length); }
 		
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
+		int len = CommandPacket.FRAME_OFFSET + length;
+		synchronized(this)
 		{
-			System.err.println("Error writing packet");
-			return false;
+			if (!this.makeRoom(len))
+			{ return false; }
+			
+			ByteBuffer header = this.headers[this.queuedPackets];
+			header.clear();
+			CommandPacket.putHeader(header, len, ifaceName);
+			header.flip();
+			this.enqueue(header, ByteBuffer.wrap(frame, offset, length), len);
 		}
 		return true;
 	}
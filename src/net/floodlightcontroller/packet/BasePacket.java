@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import java.util.Arrays;
 
 /**
 *
@@ -26,6 +27,15 @@ public abstract class BasePacket implements IPacket {
     protected IPacket parent;
     protected IPacket payload;
 
+    /**
+     * Bytes of a payload that has not been decoded yet; the payload is
+     * decoded from them the first time it is requested. Null once the
+     * payload has been decoded or set.
+     */
+    protected byte[] rawPayload;
+    protected int rawPayloadOffset;
+    protected int rawPayloadLength;
+
     /**
      * @return the parent
      */
@@ -44,10 +54,17 @@ public abstract class BasePacket implements IPacket {
     }
 
     /**
-     * @return the payload
+     * @return the payload, decoding it first if necessary
      */
     @Override
     public IPacket getPayload() {
+        if (this.rawPayload != null) {
+            IPacket decoded = this.decodePayload(this.rawPayload,
+                    this.rawPayloadOffset, this.rawPayloadLength);
+            this.rawPayload = null;
+            decoded.setParent(this);
+            this.payload = decoded;
+        }
         return payload;
     }
 
@@ -57,8 +74,50 @@ public abstract class BasePacket implements IPacket {
     @Override
     public IPacket setPayload(IPacket payload) {
         this.payload = payload;
+        this.rawPayload = null;
         return this;
     }
+
+    /**
+     * Keeps a reference to the bytes of the payload so it can be decoded
+     * when it is first requested. The bytes must not be modified afterwards.
+     * @param data bytes holding the payload
+     * @param offset offset of the payload in data
+     * @param length length of the payload
+     */
+    protected void setRawPayload(byte[] data, int offset, int length) {
+        this.payload = null;
+        this.rawPayload = data;
+        this.rawPayloadOffset = offset;
+        this.rawPayloadLength = length;
+    }
+
+    /**
+     * Creates the payload packet for this packet's header fields and
+     * deserializes it. Packets that carry typed payloads override this.
+     * @param data bytes holding the payload
+     * @param offset offset of the payload in data
+     * @param length length of the payload
+     * @return the deserialized payload
+     */
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        return new Data().deserialize(data, offset, length);
+    }
+
+    /**
+     * Serializes the payload. A payload that was never decoded is copied
+     * from its original bytes.
+     * @return the serialized payload; null if there is no payload
+     */
+    protected byte[] serializePayload() {
+        if (this.rawPayload != null)
+            return Arrays.copyOfRange(this.rawPayload, this.rawPayloadOffset,
+                    this.rawPayloadOffset + this.rawPayloadLength);
+        if (this.payload == null)
+            return null;
+        this.payload.setParent(this);
+        return this.payload.serialize();
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +132,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = this.getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +149,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = this.getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -19,8 +19,6 @@ package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.openflow.util.HexString;
 
@@ -37,17 +35,13 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
-    public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
+    public static final PayloadRegistry etherTypes = new PayloadRegistry(16)
+            .register(TYPE_ARP, ARP::new)
+            .register(TYPE_RARP, ARP::new)
+            .register(TYPE_IPv4, IPv4::new);
 
-    static {
-        etherTypeClassMap = new HashMap<Short, Class<? extends IPacket>>();
-        etherTypeClassMap.put(TYPE_ARP, ARP.class);
-        etherTypeClassMap.put(TYPE_RARP, ARP.class);
-        etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
-    }
-
-    protected MACAddress destinationMACAddress;
-    protected MACAddress sourceMACAddress;
+    protected long destinationMACAddress;
+    protected long sourceMACAddress;
     protected byte priorityCode;
     protected short vlanID;
     protected short etherType;
@@ -65,21 +59,37 @@ public class Ethernet extends BasePacket {
      * @return the destination MAC as a byte array
      */
     public byte[] getDestinationMACAddress() {
-        return destinationMACAddress.toBytes();
+        return MACAddress.valueOf(destinationMACAddress).toBytes();
     }
     
     /**
      * @return the destination MAC
      */
     public MACAddress getDestinationMAC() {
+        return MACAddress.valueOf(destinationMACAddress);
+    }
+
+    /**
+     * @return the destination MAC in the lower 48 bits of a long
+     */
+    public long getDestinationMACLong() {
         return destinationMACAddress;
     }
 
+    /**
+     * @param destinationMACAddress the destination MAC to set, in the lower
+     *        48 bits of a long
+     */
+    public Ethernet setDestinationMACAddress(long destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress & MACAddress.BROADCAST;
+        return this;
+    }
+
     /**
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(byte[] destinationMACAddress) {
-        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress).toLong();
         return this;
     }
 
@@ -87,7 +97,7 @@ public class Ethernet extends BasePacket {
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(String destinationMACAddress) {
-        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress).toLong();
         return this;
     }
 
@@ -95,21 +105,37 @@ public class Ethernet extends BasePacket {
      * @return the source MACAddress as a byte array
      */
     public byte[] getSourceMACAddress() {
-        return sourceMACAddress.toBytes();
+        return MACAddress.valueOf(sourceMACAddress).toBytes();
     }
     
     /**
      * @return the source MACAddress
      */
     public MACAddress getSourceMAC() {
+        return MACAddress.valueOf(sourceMACAddress);
+    }
+
+    /**
+     * @return the source MAC in the lower 48 bits of a long
+     */
+    public long getSourceMACLong() {
         return sourceMACAddress;
     }
 
+    /**
+     * @param sourceMACAddress the source MAC to set, in the lower 48 bits
+     *        of a long
+     */
+    public Ethernet setSourceMACAddress(long sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress & MACAddress.BROADCAST;
+        return this;
+    }
+
     /**
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(byte[] sourceMACAddress) {
-        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
+        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress).toLong();
         return this;
     }
 
@@ -117,7 +143,7 @@ public class Ethernet extends BasePacket {
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(String sourceMACAddress) {
-        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
+        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress).toLong();
         return this;
     }
 
@@ -170,15 +196,14 @@ public class Ethernet extends BasePacket {
      * @return True if the Ethernet frame is broadcast, false otherwise
      */
     public boolean isBroadcast() {
-        assert(destinationMACAddress.length() == 6);
-        return destinationMACAddress.isBroadcast();
+        return MACAddress.isBroadcast(destinationMACAddress);
     }
     
     /**
      * @return True is the Ethernet frame is multicast, False otherwise
      */
     public boolean isMulticast() {
-        return destinationMACAddress.isMulticast();
+        return MACAddress.isMulticast(destinationMACAddress);
     }
     /**
      * Pad this packet to 60 bytes minimum, filling with zeros?
@@ -198,11 +223,7 @@ public class Ethernet extends BasePacket {
     }
 
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
                           ((payloadData == null) ? 0 : payloadData.length);
         if (pad && length < 60) {
@@ -210,8 +231,8 @@ public class Ethernet extends BasePacket {
         }
         byte[] data = new byte[length];
         ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.put(destinationMACAddress.toBytes());
-        bb.put(sourceMACAddress.toBytes());
+        MACAddress.put(bb, destinationMACAddress);
+        MACAddress.put(bb, sourceMACAddress);
         if (vlanID != VLAN_UNTAGGED) {
             bb.putShort((short) 0x8100);
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
@@ -230,17 +251,8 @@ public class Ethernet extends BasePacket {
         if (length <= 0)
             return null;
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-        if (this.destinationMACAddress == null)
-            this.destinationMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] dstAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(dstAddr);
-        this.destinationMACAddress = MACAddress.valueOf(dstAddr);
-
-        if (this.sourceMACAddress == null)
-            this.sourceMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] srcAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(srcAddr);
-        this.sourceMACAddress = MACAddress.valueOf(srcAddr);
+        this.destinationMACAddress = MACAddress.get(bb);
+        this.sourceMACAddress = MACAddress.get(bb);
 
         short etherType = bb.getShort();
         if (etherType == (short) 0x8100) {
@@ -253,22 +265,16 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setRawPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        return Ethernet.etherTypes.create(this.etherType)
+                .deserialize(data, offset, length);
+    }
+
     /**
      * Checks to see if a string is a valid MAC address.
      * @param macAddress
@@ -324,12 +330,12 @@ public class Ethernet extends BasePacket {
     public int hashCode() {
         final int prime = 7867;
         int result = super.hashCode();
-        result = prime * result + destinationMACAddress.hashCode();
+        result = prime * result + Long.hashCode(destinationMACAddress);
         result = prime * result + etherType;
         result = prime * result + vlanID;
         result = prime * result + priorityCode;
         result = prime * result + (pad ? 1231 : 1237);
-        result = prime * result + sourceMACAddress.hashCode();
+        result = prime * result + Long.hashCode(sourceMACAddress);
         return result;
     }
 
@@ -345,7 +351,7 @@ public class Ethernet extends BasePacket {
         if (!(obj instanceof Ethernet))
             return false;
         Ethernet other = (Ethernet) obj;
-        if (!destinationMACAddress.equals(other.destinationMACAddress))
+        if (destinationMACAddress != other.destinationMACAddress)
             return false;
         if (priorityCode != other.priorityCode)
             return false;
@@ -355,7 +361,7 @@ public class Ethernet extends BasePacket {
             return false;
         if (pad != other.pad)
             return false;
-        if (!sourceMACAddress.equals(other.sourceMACAddress))
+        if (sourceMACAddress != other.sourceMACAddress)
             return false;
         return true;
     }
@@ -61,7 +61,8 @@ public interface IPacket {
     public byte[] serialize();
 
     /**
-     * Deserializes this packet layer and all possible payloads
+     * Deserializes this packet layer; payloads are decoded from the same
+     * bytes when they are first requested with {@link #getPayload()}
      * @param data
      * @param offset offset to start deserializing from
      * @param length length of the data to deserialize
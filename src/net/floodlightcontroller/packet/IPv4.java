@@ -23,8 +23,6 @@ package net.floodlightcontroller.packet;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -34,14 +32,10 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
-    public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
-
-    static {
-        protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
-        protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
-        protocolClassMap.put(PROTOCOL_TCP, TCP.class);
-        protocolClassMap.put(PROTOCOL_UDP, UDP.class);
-    }
+    public static final PayloadRegistry protocols = new PayloadRegistry(8)
+            .register(PROTOCOL_ICMP, ICMP::new)
+            .register(PROTOCOL_TCP, TCP::new)
+            .register(PROTOCOL_UDP, UDP::new);
 
     protected byte version;
     protected byte headerLength;
@@ -215,6 +209,109 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Computes the header checksum from the current header fields. Only the
+     * header is summed, so the cost does not depend on the payload size.
+     * @return the header checksum
+     */
+    public short calculateHeaderChecksum() {
+        int headerLength = (this.headerLength != 0) ? this.headerLength
+                : 5 + ((this.options == null) ? 0 : this.options.length / 4);
+        int accumulation = 0;
+        accumulation += ((((this.version & 0xf) << 4) | (headerLength & 0xf)) << 8)
+                | (this.diffServ & 0xff);
+        accumulation += this.totalLength & 0xffff;
+        accumulation += this.identification & 0xffff;
+        accumulation += (((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff));
+        accumulation += ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        accumulation += (this.sourceAddress >>> 16) + (this.sourceAddress & 0xffff);
+        accumulation += (this.destinationAddress >>> 16)
+                + (this.destinationAddress & 0xffff);
+        if (this.options != null) {
+            for (int i = 0; i + 1 < this.options.length; i += 2) {
+                accumulation += ((this.options[i] & 0xff) << 8)
+                        | (this.options[i + 1] & 0xff);
+            }
+        }
+        return (short) ~foldChecksum(accumulation);
+    }
+
+    /**
+     * @return true if the checksum field matches the header fields
+     */
+    public boolean isChecksumValid() {
+        return this.checksum == this.calculateHeaderChecksum();
+    }
+
+    /**
+     * Decrements the TTL and incrementally updates a non-zero checksum to
+     * match (RFC 1624), so the header need not be summed again.
+     */
+    public IPv4 decrementTtl() {
+        short oldWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        if (this.checksum != 0)
+            this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
+    /**
+     * Computes the Internet checksum of a range of bytes in a buffer. Summing
+     * a header that includes a valid checksum yields 0.
+     * @param buf buffer holding the bytes
+     * @param offset position of the first byte
+     * @param length number of bytes to sum
+     * @return the checksum
+     */
+    public static short calculateChecksum(ByteBuffer buf, int offset, int length) {
+        int accumulation = 0;
+        for (int i = 0; i + 1 < length; i += 2) {
+            accumulation += buf.getShort(offset + i) & 0xffff;
+        }
+        if (length % 2 > 0) {
+            accumulation += (buf.get(offset + length - 1) & 0xff) << 8;
+        }
+        return (short) ~foldChecksum(accumulation);
+    }
+
+    /**
+     * Incrementally updates a checksum after a 16-bit word it covers has
+     * changed, using equation 3 of RFC 1624: HC' = ~(~HC + ~m + m').
+     * @param checksum the checksum before the change
+     * @param oldWord value of the word before the change
+     * @param newWord value of the word after the change
+     * @return the updated checksum
+     */
+    public static short updateChecksum(short checksum, short oldWord, short newWord) {
+        int accumulation = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        return (short) ~foldChecksum(accumulation);
+    }
+
+    /**
+     * Incrementally updates a checksum after a 32-bit value it covers, such
+     * as an address, has changed.
+     * @param checksum the checksum before the change
+     * @param oldValue value of the field before the change
+     * @param newValue value of the field after the change
+     * @return the updated checksum
+     */
+    public static short updateChecksum(short checksum, int oldValue, int newValue) {
+        checksum = updateChecksum(checksum, (short) (oldValue >>> 16),
+                (short) (newValue >>> 16));
+        return updateChecksum(checksum, (short) oldValue, (short) newValue);
+    }
+
+    /**
+     * Folds the carries of a 32-bit ones' complement sum into 16 bits.
+     */
+    private static int foldChecksum(int accumulation) {
+        accumulation = (accumulation >>> 16) + (accumulation & 0xffff);
+        accumulation = (accumulation >>> 16) + (accumulation & 0xffff);
+        return accumulation;
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -287,11 +384,7 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
 
         int optionsLength = 0;
         if (this.options != null)
@@ -321,14 +414,7 @@ public class IPv4 extends BasePacket {
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
-            for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = calculateChecksum(bb, 0, this.headerLength * 4);
             bb.putShort(10, this.checksum);
         }
         return data;
@@ -360,19 +446,7 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setRawPayload(data, bb.position(), bb.limit()-bb.position());
 
         if (this.totalLength != length)
             this.isTruncated = true;
@@ -382,6 +456,12 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        return IPv4.protocols.create(this.protocol)
+                .deserialize(data, offset, length);
+    }
+
     /**
      * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx, ie 192.168.0.1 and
      * returns the corresponding 32 bit integer.
@@ -1,18 +1,25 @@
 package net.floodlightcontroller.packet;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
- * The class representing MAC address.
+ * The class representing MAC address. The address is held in the lower 48
+ * bits of a {@code long}; code on the packet path can use the static helpers
+ * to work with that value directly and create instances only when needed.
  *
  * @author Sho Shimizu (sho.shimizu@gmail.com)
  */
 public class MACAddress {
     public static final int MAC_ADDRESS_LENGTH = 6;
-    private byte[] address = new byte[MAC_ADDRESS_LENGTH];
+    public static final long BROADCAST = 0xffffffffffffL;
+    private final long address;
 
     public MACAddress(byte[] address) {
-        this.address = Arrays.copyOf(address, MAC_ADDRESS_LENGTH);
+        this.address = MACAddress.toLong(address, 0);
+    }
+
+    private MACAddress(long address) {
+        this.address = address & BROADCAST;
     }
 
     /**
@@ -29,13 +36,13 @@ public class MACAddress {
                     " separated pairwise by :'s.");
         }
 
-        byte[] addressInBytes = new byte[MAC_ADDRESS_LENGTH];
+        long addressInLong = 0;
         for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
             String element = elements[i];
-            addressInBytes[i] = (byte)Integer.parseInt(element, 16);
+            addressInLong = (addressInLong << 8) | Integer.parseInt(element, 16);
         }
 
-        return new MACAddress(addressInBytes);
+        return new MACAddress(addressInLong);
     }
 
     /**
@@ -60,16 +67,68 @@ public class MACAddress {
      * @throws IllegalArgumentException if the long value cannot be parsed as a MAC address.
      */
     public static MACAddress valueOf(long address) {
-        byte[] addressInBytes = new byte[] {
-                (byte)((address >> 40) & 0xff),
-                (byte)((address >> 32) & 0xff),
-                (byte)((address >> 24) & 0xff),
-                (byte)((address >> 16) & 0xff),
-                (byte)((address >> 8 ) & 0xff),
-                (byte)((address >> 0) & 0xff)
-        };
+        return new MACAddress(address);
+    }
+
+    /**
+     * Returns the MAC address stored in a byte array as a {@code long}.
+     * @param bytes the byte array holding the address
+     * @param offset offset of the first byte of the address
+     * @return the address in the lower 48 bits of a {@code long}
+     */
+    public static long toLong(byte[] bytes, int offset) {
+        long mac = 0;
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            mac = (mac << 8) | (bytes[offset + i] & 0xffL);
+        }
+        return mac;
+    }
+
+    /**
+     * Reads a MAC address from a buffer at its current position.
+     * @param bb the buffer to read from
+     * @return the address in the lower 48 bits of a {@code long}
+     */
+    public static long get(ByteBuffer bb) {
+        return ((bb.getInt() & 0xffffffffL) << 16) | (bb.getShort() & 0xffffL);
+    }
+
+    /**
+     * Writes a MAC address to a buffer at its current position.
+     * @param bb the buffer to write to
+     * @param address the address in the lower 48 bits of a {@code long}
+     */
+    public static void put(ByteBuffer bb, long address) {
+        bb.putInt((int)(address >>> 16));
+        bb.putShort((short)address);
+    }
 
-        return new MACAddress(addressInBytes);
+    /**
+     * Writes a MAC address to a buffer at an absolute index.
+     * @param bb the buffer to write to
+     * @param index index of the first byte of the address
+     * @param address the address in the lower 48 bits of a {@code long}
+     */
+    public static void put(ByteBuffer bb, int index, long address) {
+        bb.putInt(index, (int)(address >>> 16));
+        bb.putShort(index + 4, (short)address);
+    }
+
+    /**
+     * @param address the address in the lower 48 bits of a {@code long}
+     * @return {@code true} if the MAC address is the broadcast address.
+     */
+    public static boolean isBroadcast(long address) {
+        return (address & BROADCAST) == BROADCAST;
+    }
+
+    /**
+     * @param address the address in the lower 48 bits of a {@code long}
+     * @return {@code true} if the MAC address is a multicast address other
+     *         than the broadcast address.
+     */
+    public static boolean isMulticast(long address) {
+        return !isBroadcast(address) && (address & 0x010000000000L) != 0;
     }
 
     /**
@@ -77,7 +136,7 @@ public class MACAddress {
      * @return the length of the {@code MACAddress}.
      */
     public int length() {
-        return address.length;
+        return MAC_ADDRESS_LENGTH;
     }
 
     /**
@@ -85,7 +144,11 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code byte} array.
      */
     public byte[] toBytes() {
-        return Arrays.copyOf(address, address.length);
+        byte[] bytes = new byte[MAC_ADDRESS_LENGTH];
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            bytes[i] = (byte)(address >>> ((5 - i) * 8));
+        }
+        return bytes;
     }
 
     /**
@@ -93,12 +156,7 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code long}.
      */
     public long toLong() {
-        long mac = 0;
-        for (int i = 0; i < 6; i++) {
-            long t = (address[i] & 0xffL) << ((5 - i) * 8);
-            mac |= t;
-        }
-        return mac;
+        return address;
     }
 
     /**
@@ -106,11 +164,7 @@ public class MACAddress {
      * @return {@code true} if the MAC address is the broadcast address.
      */
     public boolean isBroadcast() {
-        for (byte b : address) {
-            if (b != -1) // checks if equal to 0xff
-                return false;
-        }
-        return true;
+        return MACAddress.isBroadcast(address);
     }
 
     /**
@@ -118,10 +172,7 @@ public class MACAddress {
      * @return {@code true} if the MAC address is the multicast address.
      */
     public boolean isMulticast() {
-        if (isBroadcast()) {
-            return false;
-        }
-        return (address[0] & 0x01) != 0;
+        return MACAddress.isMulticast(address);
     }
 
     @Override
@@ -135,22 +186,22 @@ public class MACAddress {
         }
 
         MACAddress other = (MACAddress)o;
-        return Arrays.equals(this.address, other.address);
+        return this.address == other.address;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this.address);
+        return Long.hashCode(this.address);
     }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        for (byte b: address) {
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
             if (builder.length() > 0) {
                 builder.append(":");
             }
-            builder.append(String.format("%02X", b & 0xFF));
+            builder.append(String.format("%02X", (address >>> ((5 - i) * 8)) & 0xFF));
         }
         return builder.toString();
     }
@@ -0,0 +1,60 @@
+package net.floodlightcontroller.packet;
+
+import java.util.function.Supplier;
+
+/**
+ * Maps the values of a header field, such as an ethertype, IP protocol
+ * number or UDP port, to factories for the packets carried as payload.
+ * Factories are stored in an array indexed by the field value, so finding
+ * the payload type for a packet needs no boxing, hashing or reflection.
+ * <p>
+ * Factories should be registered before packets are decoded; lookups do
+ * not synchronize with registration.
+ */
+public class PayloadRegistry {
+    private final Supplier<? extends IPacket>[] factories;
+    private final int mask;
+
+    /**
+     * @param bits width of the header field, e.g. 8 for IP protocol numbers
+     *        or 16 for ethertypes and ports
+     */
+    @SuppressWarnings("unchecked")
+    public PayloadRegistry(int bits) {
+        this.factories = (Supplier<? extends IPacket>[]) new Supplier<?>[1 << bits];
+        this.mask = (1 << bits) - 1;
+    }
+
+    /**
+     * Registers the factory for payloads identified by a field value,
+     * replacing any factory already registered for it.
+     * @param value the field value; only the low order bits are used
+     * @param factory creates empty packets of the payload type, or null to
+     *        decode the payload as {@link Data}
+     * @return this
+     */
+    public PayloadRegistry register(int value, Supplier<? extends IPacket> factory) {
+        this.factories[value & this.mask] = factory;
+        return this;
+    }
+
+    /**
+     * @param value the field value; only the low order bits are used
+     * @return true if a factory is registered for the value
+     */
+    public boolean contains(int value) {
+        return this.factories[value & this.mask] != null;
+    }
+
+    /**
+     * @param value the field value; only the low order bits are used
+     * @return an empty packet of the registered type, or {@link Data} if no
+     *         factory is registered for the value
+     */
+    public IPacket create(int value) {
+        Supplier<? extends IPacket> factory = this.factories[value & this.mask];
+        if (factory == null)
+            return new Data();
+        return factory.get();
+    }
+}
@@ -12,6 +12,8 @@ public class RIPv2 extends BasePacket
     public static final byte VERSION = 2;
     public static final byte COMMAND_REQUEST = 1;
     public static final byte COMMAND_RESPONSE = 2;
+    /** Largest number of entries a single message may carry (RFC 2453) */
+    public static final int MAX_ENTRIES = 25;
 
 	protected byte command;
 	protected byte version;
@@ -50,7 +52,7 @@ public class RIPv2 extends BasePacket
 		bb.put(this.version);
 		bb.putShort((short)0); // Put padding
 		for (RIPv2Entry entry : this.entries)
-		{ bb.put(entry.serialize()); }
+		{ entry.serialize(bb); }
 
 		return data;
 	}